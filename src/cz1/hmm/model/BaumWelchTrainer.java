@@ -1,14 +1,15 @@
 package cz1.hmm.model;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.zip.ZipEntry;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.distribution.BetaDistribution;
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.logging.log4j.LogManager;
@@ -19,6 +20,7 @@ import cz1.math.Combination;
 import cz1.math.Permutation;
 import cz1.util.Constants;
 import cz1.util.Constants.Field;
+import cz1.util.Constants.Storage;
 
 public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTrainer {
 	private final static Logger myLogger = LogManager.getLogger(BaumWelchTrainer.class);
@@ -27,14 +29,37 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 	protected final static double mu_J_m = 0.1;
 	protected final static double mu_J_p = 1e-8; //precision
 	protected final static double con_base_r = 1e-8;
+	protected final static double sq_mstep = 4; // SQUAREM step length multiplier
 
-	private static int bwt_iter = 0;
-	private int trans_alter = Integer.MAX_VALUE;
+	protected int bwt_iter = 0;
+	protected int trans_alter = Integer.MAX_VALUE;
+	private boolean aggregate = false; // transition-class aggregated recursions
+	private boolean squarem = false; // SQUAREM accelerated EM
+	private double sq_step_max = 1; // maximum SQUAREM step length
+	protected long memory_budget = Runtime.getRuntime().maxMemory()/2; // for the forward/backward matrices
+	private boolean checkpoint = false; // keep forward columns only every L markers
+	private int L = 0; // #markers per segment if checkpointed
+	private Storage storage = Storage.DOUBLE; // storage of the forward matrices
+	private boolean stored = false; // forward columns kept in a store out of the forward units
+	private double prune = 0; // posterior threshold to prune the state space of a sample
+	private int prune_check = 10; // #iterations between two re-expansions of the state spaces
+	private int[][] sspace0 = null; // full state spaces if pruned
+	private double[][] pmax = null; // maximum posterior of the states over the markers
+	private double beam = 0; // states below beam times the column maximum are dropped
+	private double beam_err = 1e-3; // maximum probability mass discarded per sample
+	private boolean[] beamed; // beam-pruned forward/backward of each sample
+	private boolean viterbi_beam = false; // Viterbi pruned with the lower bound
+	private int[] seg_end; // member contig ending at a marker or -1
+	private boolean fast_forward = false; // jump over the runs of missing markers
+	private boolean debug = false; // backward likelihoods checked against the forward
+	private int blocks = 1; // #marker blocks run in parallel by the recursions
+	private final static double couple_tol = 1e-12; // relative difference of coupled columns
+	private final static int count_units = 32; // #expected count units, whatever #threads
 	
 	protected StateUnit1 state1;
 	protected TransitionUnit[] transition;
-	protected ViterbiUnit[] vbs;
 	private FBUnit[] forward, backward;
+	private CountUnit[] counts; // expected counts collected over fixed blocks of samples
 	
 	public BaumWelchTrainer(DataEntry[] de, 
 			double[] seperation, 
@@ -42,7 +67,7 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			Field field,
 			int ploidy,
 			String[] parents) {
-		super(de, seperation, reverse, field, ploidy, parents, false);
+		super(de, seperation, reverse, field, ploidy, parents, false, Constants.nextSeed());
 		initialise1();
 	}
 	
@@ -54,66 +79,165 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 	protected void initialise1() {
 		// TODO Auto-generated method stub
 		this.state1 = new StateUnit1(H);
+		this.beamed = new boolean[N];
+		this.seg_end = new int[M];
+		Arrays.fill(seg_end, -1);
+		for(int i=0, k=0; i<Ms.length; i++) {
+			k += Ms[i];
+			seg_end[k-1] = i;
+		}
+		this.makeCheckpoints();
 		this.makeTransitionUnits();
-		this.makeViterbiUnits();
 		this.makeNaiveTrainer();
 	}
 
 	public static BaumWelchTrainer copyOf(EmissionModel model) {
 		BaumWelchTrainer hmm = new BaumWelchTrainer();
-		hmm.field = model.field;
-		hmm.de = model.de;
-		hmm.M = model.M; // #markers
-		hmm.N = model.N; // #individuals
-		hmm.H = model.H; // #founder haplotypes
-		hmm.K = model.K; // #compound hidden states
-		hmm.Nf1 = model.Nf1;
-		hmm.state = model.state;
-		hmm.samples = model.samples;
-		hmm.parents = model.parents;
-		hmm.fi1ter = model.fi1ter;
-		hmm.parents_i = model.parents_i;
-		hmm.progeny_i = model.progeny_i;
-		hmm.weights = model.weights;
-		hmm.distance = model.distance;
-		hmm.sspace = model.sspace; // state space for each sample
-		if(iteration>0) 
-			model.switchNumericalSpace(false);
-		else
-			model.logspace = false;
-		hmm.obs = model.obs;
-		hmm.pas = model.pas;
-		hmm.emission = model.emission;
-		hmm.logspace = model.logspace;
-		hmm.conjs.addAll(model.conjs);
-		hmm.true_id = model.true_id;
-		hmm.true_pos = model.true_pos;
-		hmm.chrs = model.chrs;
-		hmm.chrs_rev = model.chrs_rev;
-		hmm.Ms = model.Ms;
-		hmm.initialise1();
-		hmm.makeNaiveTrainer();
+		hmm.copy(model, false);
+		return hmm;
+	}
+	
+	public static BaumWelchTrainer copyOf(EmissionModel model, long memory_budget) {
+		return copyOf(model, memory_budget, Storage.DOUBLE);
+	}
+	
+	public static BaumWelchTrainer copyOf(EmissionModel model, long memory_budget, Storage storage) {
+		BaumWelchTrainer hmm = new BaumWelchTrainer();
+		hmm.memory_budget = memory_budget;
+		hmm.storage = storage;
+		hmm.copy(model, false);
 		return hmm;
 	}
 	
+	protected void copy(EmissionModel model, boolean logspace) {
+		this.field = model.field;
+		this.de = model.de;
+		this.M = model.M; // #markers
+		this.N = model.N; // #individuals
+		this.H = model.H; // #founder haplotypes
+		this.K = model.K; // #compound hidden states
+		this.Nf1 = model.Nf1;
+		this.state = model.state;
+		this.samples = model.samples;
+		this.parents = model.parents;
+		this.fi1ter = model.fi1ter;
+		this.parents_i = model.parents_i;
+		this.progeny_i = model.progeny_i;
+		this.weights = model.weights;
+		this.distance = model.distance;
+		this.sspace = model.sspace; // state space for each sample
+		if(model.iteration>0) 
+			model.switchNumericalSpace(logspace);
+		else
+			model.logspace = logspace;
+		this.obs = model.obs;
+		this.pas = model.pas;
+		this.emission = model.emission;
+		this.logspace = model.logspace;
+		this.conjs.addAll(model.conjs);
+		this.true_id = model.true_id;
+		this.true_pos = model.true_pos;
+		this.chrs = model.chrs;
+		this.chrs_rev = model.chrs_rev;
+		this.Ms = model.Ms;
+		this.runs = model.runs;
+		this.threads = model.threads;
+		this.pool = model.pool;
+		this.iteration = model.iteration;
+		this.seed = model.seed;
+		this.rg = model.rg;
+		this.initialise1();
+	}
+	
+	private void makeCheckpoints() {
+		// TODO Auto-generated method stub
+		double mem = this.memory();
+		this.checkpoint = mem>memory_budget;
+		this.stored = !checkpoint && storage!=Storage.DOUBLE;
+		if(this.checkpoint) {
+			this.L = (int) Math.ceil(Math.sqrt(M));
+			myLogger.info("forward/backward matrices need "+(long) (mem/1048576)+"MB, "
+					+ "over the budget of "+memory_budget/1048576+"MB. "
+					+ "forward probabilities are checkpointed every "+L+" markers.");
+		} else if(this.stored) {
+			// the recursions run on a window of double columns
+			this.L = (int) Math.ceil(Math.sqrt(M));
+			myLogger.info("forward probabilities are stored "+(storage==Storage.FLOAT ? 
+					"as floats" : "off the heap")+".");
+		}
+	}
+	
+	/***
+	 * heap memory of the recursions if the forward probabilities are 
+	 * not checkpointed, i.e. the forward matrices unless stored off the
+	 * heap, the backward columns (of all markers for parallel-in-time
+	 * recursions), the Viterbi workspace of each worker and the 
+	 * expected count units.
+	 * 
+	 * @return #bytes
+	 */
+	private double memory() {
+		// TODO Auto-generated method stub
+		final int b = Math.max(1, Math.min(threads, N));
+		double mem = 0;
+		// forward matrices, and a window of double columns if stored
+		if(storage==Storage.DOUBLE) 
+			mem += (double) N*M*K*8;
+		else {
+			mem += (double) N*(Math.ceil(Math.sqrt(M))+1)*K*8;
+			if(storage==Storage.FLOAT) mem += (double) N*M*K*4;
+		}
+		// backward matrices
+		mem += (double) N*(blocks>1?M:2)*K*8;
+		// log scales of the forward and backward
+		mem += (double) N*M*8*2;
+		// Viterbi unit: two columns and a trace of int
+		mem += (double) b*(2*K*8+(M-1)*K*4);
+		// expected count units
+		double c = (M-1)*2*8;
+		for(int i=0; i<M; i++) {
+			final double[][] count = emission[i].getCount();
+			c += (double) count.length*count[0].length*8;
+		}
+		mem += Math.max(1, Math.min(count_units, N))*c;
+		return mem;
+	}
+	
 	@Override
 	public void makeNaiveTrainer() {
 		// TODO Auto-generated method stub
 		this.forward = new FBUnit[N];
-		for(int i=0; i<N; i++) 
-			this.forward[i] = new FBUnit(false);
 		this.backward = new FBUnit[N];
-		for(int i=0; i<N; i++) 
-			this.backward[i] = new FBUnit(true);
+		if(checkpoint) {
+			// column before each segment and a window of L+1 columns
+			for(int i=0; i<N; i++) { 
+				this.forward[i] = new FBUnit(false, L+1);
+				this.forward[i].checkpoints = new double[(M-1)/L][K];
+			}
+		} else if(stored) {
+			// all columns in the store and a window of L+1 columns
+			for(int i=0; i<N; i++) { 
+				this.forward[i] = new FBUnit(false, L+1);
+				this.forward[i].store = new FBStore();
+			}
+		} else {
+			for(int i=0; i<N; i++) 
+				this.forward[i] = new FBUnit(false);
+		}
+		// backward is fused with the E-step and only 
+		// keeps the last two columns
+		for(int i=0; i<N; i++) {
+			this.backward[i] = new FBUnit(true, 2);
+			this.backward[i].rolling = true;
+		}
+		// a fixed number of units so that the counts are added up 
+		// in the same order whatever the number of threads
+		this.counts = new CountUnit[Math.max(1, Math.min(count_units, N))];
+		for(int i=0; i<counts.length; i++) 
+			this.counts[i] = new CountUnit();
 		return;
 	}
 
-	private void makeViterbiUnits() {
-		// TODO Auto-generated method stub
-		vbs = new ViterbiUnit[N];
-		for(int i=0; i<N; i++) vbs[i] = new ViterbiUnit();
-	}
-
 	private void makeTransitionUnits() {
 		// TODO Auto-generated method stub
 		this.transition = new TransitionUnit[M-1];
@@ -124,162 +248,301 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 	@Override
 	public double findPath() {
 		// TODO Auto-generated method stub
-		// not sure if this makes much difference
-		double probability = 0.0;
-		for(int i=0; i<N; i++) {
-			if(fi1ter[i]) continue;
-			
-			Integer[] ss = this.sspace.get(i);
-			ObUnit[] ob = obs[i];
-			double pi = 1.0/ss.length; // init probability
-			
-			this.vbs[i].clear();
-			double[][] v = this.vbs[i].v;
-			int[][] trace = this.vbs[i].trace;
-			double[] logscale = this.vbs[i].logscale;
-			
-			double[] emiss = ob[0].emiss;
-			TransitionUnit t;
-			
-			for(int k : ss) v[0][k] = pi*emiss[k];
-			logscale[0] = ob[0].getLogScale();
-			for(int j=1; j<M; j++) {
-				emiss = ob[j].emiss;
-				t = transition[j-1];
+		// contiguous blocks of samples, one per worker, and each
+		// worker decodes its samples in a single Viterbi unit
+		final double[] probability = new double[N];
+		final int b = Math.max(1, Math.min(threads, N));
+		parallel(b, c -> {
+			final ViterbiUnit vb = new ViterbiUnit();
+			for(int i=c*N/b; i<(c+1)*N/b; i++) 
+				probability[i] = findPath(i, vb);
+		});
+		return StatUtils.sum(probability);
+	}
+	
+	/***
+	 * Viterbi path of sample i. if viterbi_beam is set the probability 
+	 * of the best path staying in one state is a lower bound of the 
+	 * Viterbi path, and a state with a partial path below the lower 
+	 * bound is dropped from the column as it can not be on the best
+	 * path.
+	 */
+	private double findPath(final int i, final ViterbiUnit vb) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return 0;
 
-				for(int k : ss) {
-					double a, b = 0, c = 0;
-					int s = k;
-					for(int z : ss) {
-						a = v[j-1][z]*t.trans(z, k);
-						if(a > c) {
-							c = a;
-							s = z;
-						}
-						if(z==k) b = a;
-					}
+		int[] ss = this.sspace[i];
+		double pi = pi(i); // init probability
 
-					if(b==c) s = k;
-					a = emiss[k]*c;
-					trace[j-1][k] = s;
-					v[j][k] = a;
-				}
-				logscale[j] = ob[j].getLogScale();
-				vbs[i].scale(j);
-			}
+		vb.clear();
+		double[] v = vb.v;
+		int[] trace = vb.trace;
+		double[] logscale = vb.logscale;
 
-			this.vbs[i].finalise();
-			this.vbs[i].trace(pas[i].path, pas[i].path_str);
-			probability += this.vbs[i].probability();
-		}
+		double[] emiss = obs.emiss(i, 0);
+		final int[] hf = state1.hscf;
+		double[] tr;
+		int off0, off1, row, tro;
+		
+		final double lower_bound = viterbi_beam ? this.lowerBound(i) : 
+			Double.NEGATIVE_INFINITY;
+		final int[] act = vb.act;
+		int n = 0;
 
-		return probability;
-	}
-	
-	public double findPath1() {
-		// TODO Auto-generated method stub
-		// not sure yet if this makes much difference
-		// cause we need to calculate a lot of logs
-		double probability = 0.0;
-		for(int i=0; i<N; i++) {
-			if(fi1ter[i]) continue;
+		for(int k : ss) v[k] = pi*emiss[k];
+		logscale[0] = obs.logscale(i, 0);
+		for(int j=1; j<M; j++) {
+			emiss = obs.emiss(i, j);
+			tr = transition[j-1].trans;
+			off0 = vb.off(j-1);
+			off1 = vb.off(j);
+			tro = (j-1)*K;
 			
-			Integer[] ss = this.sspace.get(i);
-			ObUnit[] ob = obs[i];
-			double pi = 1.0/ss.length; // init probability
+			n = 0;
+			for(int z : ss) 
+				if(v[off0+z]>0) act[n++] = z;
 			
-			// pre-calculation for a lower bound for Viterbi path
-			// used to get rid of of some paths later
-			double lower_bound = Double.NEGATIVE_INFINITY;
 			for(int k : ss) {
-				double x = pi*ob[0].emiss[k];
-				double logscale = ob[0].getLogScale();
-				
-				for(int j=1; j<M; j++) {
-					x *= ob[j].emiss[k]*transition[j-1].trans(k,k);
-					logscale += ob[j].getLogScale();
-					if(x<Constants.threshMin) {
-						logscale += Constants.logThreshMax;
-						x /= Constants.threshMax;
+				double a, b = 0, c = 0;
+				int s = k;
+				row = k*K;
+				for(int x=0; x<n; x++) {
+					final int z = act[x];
+					a = v[off0+z]*tr[hf[row+z]];
+					if(a > c) {
+						c = a;
+						s = z;
 					}
+					if(z==k) b = a;
 				}
-				x = Math.log(x)+logscale;
-				if(lower_bound < x) lower_bound = x;
-			}
-			lower_bound -= 0.04139268515;
 
-			this.vbs[i].clear();
-			double[][] v = this.vbs[i].v;
-			int[][] trace = this.vbs[i].trace;
-			double[] logscale = this.vbs[i].logscale;
-			
-			Set<Integer> ss_copy   = new HashSet<Integer>(Arrays.asList(ss));
-			Set<Integer> ss_from = new HashSet<Integer>();
-			double[] emiss;
-			TransitionUnit t;
+				if(b==c) s = k;
+				a = emiss[k]*c;
+				trace[tro+k] = s;
+				v[off1+k] = a;
+			}
+			logscale[j] = obs.logscale(i, j);
+			vb.scale(j);
 			
-			for(int k : ss) v[0][k] = pi*ob[0].emiss[k];
-			logscale[0] = ob[0].getLogScale();
-			for(int j=1; j<M; j++) {
-				ss_from.clear();
-				ss_from.addAll(ss_copy);
-				ss_copy.clear();
-				emiss = ob[j].emiss;
-				t = transition[j-1];
-
-				for(int k : ss) {
-					double a, b = 0, c = 0;
-					int s = k;
-					for(int z : ss_from) {
-						a = v[j-1][z]*t.trans(z, k);
-						if(a > c) {
-							c = a;
-							s = z;
-						}
-						if(z==k) b = a;
-					}
+			if(viterbi_beam) {
+				final double lb = lower_bound-logscale[j];
+				for(int k : ss) 
+					if(v[off1+k]>0&&Math.log(v[off1+k])<lb) 
+						v[off1+k] = 0;
+			}
+		}
 
-					if(b==c) s = k;
-					a = emiss[k]*c;
-					
-					if(Math.log(a)+logscale[j-1]+ob[j].getLogScale()>=lower_bound) {
-						trace[j-1][k] = s;
-						v[j][k] = a;
-						ss_copy.add(k);
-					}
+		vb.finalise();
+		vb.trace(pas[i].path);
+		return vb.probability();
+	}
+	
+	/***
+	 * log probability of the best path of sample i staying in one 
+	 * state, less a small tolerance for the rounding errors
+	 */
+	private double lowerBound(final int i) {
+		// TODO Auto-generated method stub
+		final int[] ss = this.sspace[i];
+		final double pi = pi(i);
+		double lower_bound = Double.NEGATIVE_INFINITY;
+		for(int k : ss) {
+			double x = pi*obs.emiss(i, 0)[k];
+			double logscale = obs.logscale(i, 0);
+			for(int j=1; j<M; j++) {
+				x *= obs.emiss(i, j)[k]*transition[j-1].trans(k,k);
+				logscale += obs.logscale(i, j);
+				if(x<Constants.threshMin) {
+					logscale += Constants.logThreshMax;
+					x /= Constants.threshMax;
 				}
-				logscale[j] = ob[j].getLogScale();
-				vbs[i].scale(j);
 			}
-
-			this.vbs[i].finalise();
-			this.vbs[i].trace(pas[i].path, pas[i].path_str);
-			probability += this.vbs[i].probability();
+			x = Math.log(x)+logscale;
+			if(lower_bound < x) lower_bound = x;
 		}
-
-		return probability;
+		return lower_bound-1e-6;
 	}
 
 	@Override
 	public void train() {
+		// TODO Auto-generated method stub
+		if(squarem) 
+			squarem();
+		else 
+			step();
+	}
+	
+	private void step() {
 		// TODO Auto-generated method stub
 		++iteration;
 		++bwt_iter;
 		
+		final boolean expand = prune>0 && (bwt_iter-1)%prune_check==0;
+		if(expand) {
+			this.expand();
+			this.pmax = new double[N][K];
+		}
 		refresh();
 		forward();
 		backward();
-		check();
+		if(debug) check();
 		em();
+		if(expand) this.prune();
+	}
+	
+	/***
+	 * the state space of each progeny is narrowed to the states with a 
+	 * posterior probability of at least prune at any marker. the 
+	 * posterior probabilities are collected with the full state spaces 
+	 * in the first iteration and every prune_check iterations after, 
+	 * so that states pruned before could come back.
+	 */
+	private void prune() {
+		// TODO Auto-generated method stub
+		long kept = 0, n = 0;
+		for(int i : progeny_i) {
+			if(fi1ter[i]) continue;
+			final int[] ss0 = sspace0[i];
+			int c = 0;
+			for(int k : ss0) if(pmax[i][k]>=prune) ++c;
+			final int[] ss = new int[c];
+			c = 0;
+			for(int k : ss0) if(pmax[i][k]>=prune) ss[c++] = k;
+			sspace[i] = ss;
+			// pruned states are kept zero in the recursions
+			if(ss.length<ss0.length) {
+				Arrays.fill(forward[i].probsMat, 0);
+				Arrays.fill(backward[i].probsMat, 0);
+			}
+			kept += ss.length;
+			++n;
+		}
+		this.pmax = null;
+		myLogger.info("state spaces pruned: "+(n==0?0:(double)kept/n)+" states per progeny "
+				+ "out of "+(K-2)+".");
+	}
+	
+	private void expand() {
+		// TODO Auto-generated method stub
+		System.arraycopy(sspace0, 0, sspace, 0, N);
+	}
+	
+	private double pi(final int i) {
+		// TODO Auto-generated method stub
+		// pruned states keep their share of the initial probability,
+		// so the likelihood does not change by pruning only
+		return 1.0/(sspace0==null ? sspace[i] : sspace0[i]).length;
+	}
+	
+	/***
+	 * maximum posterior probabilities of the states of sample i
+	 * updated with marker j. needs forward and backward column j.
+	 */
+	private void pmax(final int i, final int j) {
+		// TODO Auto-generated method stub
+		final FBUnit fw1 = forward[i], bw1 = backward[i];
+		final int[] ss = sspace[i];
+		final double[] p = pmax[i];
+		final int offf = fw1.off(j), offb = bw1.off(j);
+		double s = 0, q;
+		for(int k : ss) s += fw1.probsMat[offf+k]*bw1.probsMat[offb+k];
+		if(s==0) return;
+		for(int k : ss) {
+			q = fw1.probsMat[offf+k]*bw1.probsMat[offb+k]/s;
+			if(q>p[k]) p[k] = q;
+		}
+	}
+	
+	/***
+	 * one cycle of SQUAREM (Varadhan & Roland, 2008). two EM steps 
+	 * theta0->theta1->theta2 are extrapolated along r=theta1-theta0 and
+	 * v=theta2-2*theta1+theta0 with step length alpha, followed by an 
+	 * EM step from the extrapolated parameters. the extrapolation is 
+	 * rejected and plain EM continues from theta2 if it does not improve
+	 * the likelihood of theta1, so the likelihood never decreases. 
+	 * loglik() is of the parameters of the last EM step as without
+	 * acceleration.
+	 */
+	private void squarem() {
+		// TODO Auto-generated method stub
+		final double[] theta0 = this.getParameters();
+		step();
+		final double ll0 = loglik();
+		final double[] theta1 = this.getParameters();
+		step();
+		final double ll1 = loglik();
+		final double[] theta2 = this.getParameters();
+		
+		final int n = theta0.length;
+		final double[] r = new double[n], v = new double[n];
+		double rr = 0, vv = 0;
+		for(int i=0; i<n; i++) {
+			r[i] = theta1[i]-theta0[i];
+			v[i] = theta2[i]-theta1[i]-r[i];
+			rr += r[i]*r[i];
+			vv += v[i]*v[i];
+		}
+		if(vv==0) {
+			myLogger.info("SQUAREM: no extrapolation, loglik "+ll0+" -> "+ll1);
+			return;
+		}
+		
+		double alpha = -Math.sqrt(rr/vv);
+		alpha = Math.max(Math.min(alpha, -1), -sq_step_max);
+		final double[] theta = new double[n];
+		for(int i=0; i<n; i++)
+			theta[i] = theta0[i]-2*alpha*r[i]+alpha*alpha*v[i];
+		this.setParameters(theta);
+		step();
+		final double ll = loglik();
+		
+		if(ll>=ll1) {
+			if(alpha==-sq_step_max) sq_step_max *= sq_mstep;
+			myLogger.info("SQUAREM: step length "+(-alpha)+", loglik "+ll0+" -> "+ll1+" -> "+ll);
+		} else {
+			sq_step_max = Math.max(1, sq_step_max/sq_mstep);
+			myLogger.info("SQUAREM: step length "+(-alpha)+" rejected, loglik "+ll0+" -> "+ll1+" -> "+ll);
+			this.setParameters(theta2);
+			step();
+		}
+	}
+	
+	/***
+	 * emission probabilities of the markers followed by the jump 
+	 * probabilities of the intervals
+	 */
+	protected double[] getParameters() {
+		// TODO Auto-generated method stub
+		final int h = 2*H;
+		final double[] theta = new double[M*h+M-1];
+		for(int i=0; i<M; i++) 
+			System.arraycopy(emission[i].emiss, 0, theta, i*h, h);
+		for(int i=0; i<M-1; i++) 
+			theta[M*h+i] = transition[i].jump;
+		return theta;
+	}
+	
+	/***
+	 * parameters are projected onto their feasible ranges
+	 */
+	protected void setParameters(final double[] theta) {
+		// TODO Auto-generated method stub
+		final int h = 2*H;
+		parallel(M, i -> emission[i].update(Arrays.copyOfRange(theta, i*h, i*h+h)));
+		parallel(M-1, i -> transition[i].update(Math.min(Math.max(theta[M*h+i], mu_J_p), 0.5-mu_J_p)));
 	}
 	
 	@Override
 	public void em() {
 		// TODO Auto-generated method stub
-		for(int i=0; i<M; i++) updateEmiss(i);
+		// expected counts are collected in backward(), here 
+		// the counts of the workers are merged and the 
+		// parameters are updated. markers are independent
+		// and each task only writes to the unit it updates
+		parallel(M, this::updateEmiss);
 		
 		if(bwt_iter%trans_alter==0) {
-			for(int i=0; i<M-1; i++) updateTrans(i);
+			parallel(M-1, this::updateTrans);
 			myLogger.info("jump probabilities updated.");
 		} else {
 			double jump1, jump2;
@@ -294,186 +557,856 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 
 	private void updateTrans(final int i) {
 		// TODO Auto-generated method stub
-		FBUnit fw1, bw1;
-		ObUnit ob1;
-		double exp_c, exp, count;
-		Integer[] ss;
-
 		TransitionUnit t1;
 		t1 = transition[i];
 		t1.pseudoCount();
-		for(int j=0;j<N; j++) {
-			if(fi1ter[j]) continue;
-			
-			ss = sspace.get(j);
-			fw1 = forward[j];
-			bw1 = backward[j];
-			ob1 = obs[j][i+1];
-			exp_c = fw1.logscale[i]+
-					bw1.logscale[i+1]+
-					ob1.getLogScale()-
-					fw1.probability;
-
-			if(exp_c>Constants.MAX_EXP_DOUBLE) { 
-				for(int a : ss) {
-					for(int b : ss) { 
-						count = Math.exp(Math.log(
-								fw1.probsMat[i][a]*
-								t1.trans(a, b)*
-								ob1.emiss[b]*
-								bw1.probsMat[i+1][b])+
-								exp_c);
-						t1.addCount(a, b, count);
-					}
-				}
-			} else {
-				exp = Math.exp(exp_c);
-				for(int a : ss) {
-					for(int b : ss) { 
-						count = fw1.probsMat[i][a]*
-								t1.trans(a, b)*
-								ob1.emiss[b]*
-								bw1.probsMat[i+1][b]*
-								exp;
-						t1.addCount(a, b, count);
-					}
-				}
-			}
-		}
+		for(CountUnit c : counts) 
+			t1.addCount(c.trans[i][0], c.trans[i][1]);
 		t1.update();
 	}
 
 	private void updateEmiss(final int i) {
 		// TODO Auto-generated method stub
-		FBUnit fw1, bw1;
-		ObUnit ob1;
-		double exp_c, exp, count, coeff;
-		Integer[] ss;
-		int acnt, bcnt;
-	
 		EmissionUnit e1;
 		e1 = emission[i];
 		e1.pseudoCount();
-		for(int j=0;j<N; j++) {
-			if(fi1ter[j]) continue;
-			
-			ss = sspace.get(j);
-			fw1 = forward[j];
-			bw1 = backward[j];
-			ob1 = obs[j][i];
-			acnt = ob1.getAa();
-			bcnt = ob1.getCov()-acnt;
-			coeff = weights[j==parents_i[0]||j==parents_i[1]?0:1];
-			exp_c = fw1.logscale[i]+
-					bw1.logscale[i]-
-					fw1.probability;
-
-			if(exp_c>Constants.MAX_EXP_DOUBLE) {
-				for(int a : ss) {
-					count = coeff*
-							Math.exp(Math.log(
-							fw1.probsMat[i][a]*
-							bw1.probsMat[i][a])+
-							exp_c);
-					e1.addCount(a, acnt, bcnt, count);
-				}
+		for(CountUnit c : counts) 
+			e1.addCount(c.emiss[i]);
+		e1.update();
+	}
+	
+	/***
+	 * expected #jumps and #stays between marker i and i+1 of sample j
+	 * are added to cnts. needs forward column i and backward column i+1.
+	 */
+	private void countTrans(final int j, final int i, final double[] cnts,
+			final double[] y, final double[][] wa, final double[][] wp) {
+		// TODO Auto-generated method stub
+		final FBUnit fw1 = forward[j], bw1 = backward[j];
+		final double[] emiss1 = obs.emiss(j, i+1);
+		final int[] ss = sspace[j];
+		final TransitionUnit t1 = transition[i];
+		final double[] tr = t1.trans;
+		final int[] hf = state1.hscf;
+		final double exp_c = fw1.logscale[i]+
+				bw1.logscale[i+1]+
+				obs.logscale(j, i+1)-
+				fw1.probability;
+		final int off0 = fw1.off(i), off1 = bw1.off(i+1);
+		double exp, count;
+		int row;
+		
+		if(aggregated(j)) {
+			for(int b : ss) y[b] = emiss1[b]*bw1.probsMat[off1+b];
+			double[] c = t1.aggregateCount(fw1.probsMat, off0, y, wa, wp);
+			if(exp_c>Constants.MAX_EXP_DOUBLE) { 
+				cnts[0] += Math.exp(Math.log(c[0])+exp_c);
+				cnts[1] += Math.exp(Math.log(c[1])+exp_c);
 			} else {
 				exp = Math.exp(exp_c);
-				for(int a : ss) {
-					count = coeff*
-							fw1.probsMat[i][a]*
-							bw1.probsMat[i][a]*
+				cnts[0] += c[0]*exp;
+				cnts[1] += c[1]*exp;
+			}
+		} else if(exp_c>Constants.MAX_EXP_DOUBLE) { 
+			for(int a : ss) {
+				row = a*K;
+				for(int b : ss) { 
+					count = Math.exp(Math.log(
+							fw1.probsMat[off0+a]*
+							tr[hf[row+b]]*
+							emiss1[b]*
+							bw1.probsMat[off1+b])+
+							exp_c);
+					t1.addCount(a, b, count, cnts);
+				}
+			}
+		} else {
+			exp = Math.exp(exp_c);
+			for(int a : ss) {
+				row = a*K;
+				for(int b : ss) { 
+					count = fw1.probsMat[off0+a]*
+							tr[hf[row+b]]*
+							emiss1[b]*
+							bw1.probsMat[off1+b]*
 							exp;
-					e1.addCount(a, acnt, bcnt, count);
+					t1.addCount(a, b, count, cnts);
 				}
 			}
 		}
-		e1.update();
+	}
+
+	/***
+	 * expected emission counts at marker i of sample j are added 
+	 * to cnts. needs forward and backward column i.
+	 */
+	private void countEmiss(final int j, final int i, final double[][] cnts) {
+		// TODO Auto-generated method stub
+		final FBUnit fw1 = forward[j], bw1 = backward[j];
+		final int[] ss = sspace[j];
+		final EmissionUnit e1 = emission[i];
+		final int acnt = obs.aa(j, i), 
+				bcnt = obs.cov(j, i)-acnt;
+		if(acnt+bcnt==0) return;
+		final double coeff = weights[j==parents_i[0]||j==parents_i[1]?0:1];
+		final double exp_c = fw1.logscale[i]+
+				bw1.logscale[i]-
+				fw1.probability;
+		final int offf = fw1.off(i), offb = bw1.off(i);
+		double exp, count;
+
+		if(exp_c>Constants.MAX_EXP_DOUBLE) {
+			for(int a : ss) {
+				count = coeff*
+						Math.exp(Math.log(
+						fw1.probsMat[offf+a]*
+						bw1.probsMat[offb+a])+
+						exp_c);
+				e1.addCount(a, acnt, bcnt, count, cnts);
+			}
+		} else {
+			exp = Math.exp(exp_c);
+			for(int a : ss) {
+				count = coeff*
+						fw1.probsMat[offf+a]*
+						bw1.probsMat[offb+a]*
+						exp;
+				e1.addCount(a, acnt, bcnt, count, cnts);
+			}
+		}
 	}
 
 	@Override
 	public void backward() {
 		// TODO Auto-generated method stub
+		// contiguous blocks of samples, one per count unit, so that 
+		// the counts are added up in the same order in every run
+		final boolean[] trans_c = new boolean[M-1];
+		if(bwt_iter%trans_alter==0)
+			Arrays.fill(trans_c, true);
+		else 
+			for(int i : conjs) trans_c[i] = true;
+		if(blocks>1) {
+			backwardBlocks(trans_c);
+			return;
+		}
+		final int b = counts.length;
+		parallel(b, c -> {
+			counts[c].clear();
+			for(int i=c*N/b; i<(c+1)*N/b; i++) 
+				backward(i, counts[c], trans_c);
+		});
+		return;
+	}
+	
+	/***
+	 * parallel-in-time backward, see forwardBlocks(). the last block
+	 * is exact and the other blocks start afresh from ones at their 
+	 * last marker. the blocks are stitched from the end, and the counts
+	 * are then collected over the (sample, block) pairs, contiguous 
+	 * pairs per count unit so that the sums are the same in every run.
+	 */
+	private void backwardBlocks(final boolean[] trans_c) {
+		// TODO Auto-generated method stub
+		final long[] rerun = new long[N];
+		parallel(N*blocks, t -> backwardBlock(t/blocks, t%blocks));
+		parallel(N, i -> rerun[i] = stitchBackward(i));
+		
+		final int T = N*blocks, b = counts.length;
+		parallel(b, c -> {
+			counts[c].clear();
+			for(int t=c*T/b; t<(c+1)*T/b; t++) 
+				countBlock(t/blocks, t%blocks, counts[c], trans_c);
+		});
+		// one worker per sample for the maximum posteriors
+		if(pmax!=null) parallel(N, i -> {
+			if(fi1ter[i]) return;
+			for(int j=0; j<M; j++) pmax(i, j);
+		});
+		logRerun("backward", rerun);
+		return;
+	}
+	
+	private void backwardBlock(final int i, final int b) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return;
+		final int a = bound(b), e = bound(b+1);
+		if(b==blocks-1) {
+			backward(i, a, M);
+			return;
+		}
+		final FBUnit bw = backward[i];
+		final int off = bw.off(e-1);
+		for(int k : sspace[i]) bw.probsMat[off+k] = 1.0;
+		bw.logscale[e-1] = 0;
+		backward(i, a, e-1);
+	}
+	
+	/***
+	 * block b-1 is run again from the last column of block b until 
+	 * the backward column is proportional to the one run afresh, and 
+	 * the log scales of the columns below it are shifted.
+	 * 
+	 * @return #columns run again
+	 */
+	private long stitchBackward(final int i) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return 0;
+		final FBUnit bw = backward[i];
+		final double[] x = new double[K];
+		long rerun = 0;
+		for(int b=blocks-2; b>=0; b--) {
+			final int a = bound(b), e = bound(b+1);
+			int j = e-1;
+			double delta = 0;
+			for(; j>=a; j--) {
+				final double lx = bw.logscale[j];
+				System.arraycopy(bw.probsMat, bw.off(j), x, 0, K);
+				backward(i, j, j+1);
+				++rerun;
+				if(!Double.isNaN(delta = couple(bw, j, x, lx, sspace[i]))) break;
+			}
+			if(j<a) continue;
+			for(int l=a; l<j; l++) bw.logscale[l] += delta;
+		}
+		if(debug) backwardProbability(i);
+		return rerun;
+	}
+	
+	/***
+	 * if column j of unit u run again is proportional to x, the column
+	 * run afresh with log scale lx, the shift of the log scales of the
+	 * columns run afresh after it, otherwise NaN. the recursions forget
+	 * where they started, so the columns normalised to one become the 
+	 * same after a few markers.
+	 */
+	private double couple(final FBUnit u, final int j, final double[] x, 
+			final double lx, final int[] ss) {
+		// TODO Auto-generated method stub
+		final double[] probsMat = u.probsMat;
+		final int off = u.off(j);
+		double sx = 0, sy = 0;
+		for(int k : ss) {
+			sx += x[k];
+			sy += probsMat[off+k];
+		}
+		if(sx==0 || sy==0) return Double.NaN;
+		// relative to each state, as the emissions downstream could 
+		// blow up a state of little probability here
+		double a, b;
+		for(int k : ss) {
+			a = x[k]/sx;
+			b = probsMat[off+k]/sy;
+			if(Math.abs(a-b)>couple_tol*Math.max(a, b)) 
+				return Double.NaN;
+		}
+		return u.logscale[j]-lx+Math.log(sy/sx);
+	}
+	
+	/***
+	 * E-step of markers [bound(b), bound(b+1)) of sample i
+	 */
+	private void countBlock(final int i, final int b, final CountUnit c, final boolean[] trans_c) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return;
+		final boolean agg = aggregated(i);
+		final double[] y = agg ? new double[K] : null;
+		final double[][] wa = agg ? new double[state1.G][state1.G] : null;
+		final double[][] wp = agg ? new double[state1.G][state1.G] : null;
+		for(int j=bound(b); j<bound(b+1); j++) {
+			if(j<M-1 && trans_c[j])
+				countTrans(i, j, c.trans[j], y, wa, wp);
+			countEmiss(i, j, c.emiss[j]);
+		}
+	}
+	
+	private int bound(final int b) {
+		// TODO Auto-generated method stub
+		return (int) ((long) b*M/blocks);
+	}
+	
+	private void logRerun(final String recursion, final long[] rerun) {
+		// TODO Auto-generated method stub
+		long s = 0;
+		int n = 0;
 		for(int i=0; i<N; i++) {
 			if(fi1ter[i]) continue;
-			
-			Integer[] ss = sspace.get(i);
-			double[][] probsMat = backward[i].probsMat;
-			double[] logscale = backward[i].logscale;
-			ObUnit[] ob = obs[i];
-			
-			double[] emiss;
-			TransitionUnit t;
-			
-			for(int k : ss) probsMat[M-1][k] = 1.0;
+			s += rerun[i];
+			++n;
+		}
+		myLogger.info("parallel-in-time "+recursion+": "+
+				String.format("%.1f", n==0 ? 0 : (double) s/n)+
+				" markers per sample run again to stitch "+blocks+" blocks.");
+	}
+	
+	/***
+	 * backward recursion of sample i fused with the E-step. only two 
+	 * backward columns are kept. if the forward probabilities are 
+	 * checkpointed the segments are recomputed from the last one. 
+	 */
+	private void backward(final int i, final CountUnit c, final boolean[] trans_c) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return;
+		
+		final boolean agg = aggregated(i);
+		final double[] y = agg ? new double[K] : null;
+		final double[][] wa = agg ? new double[state1.G][state1.G] : null;
+		final double[][] wp = agg ? new double[state1.G][state1.G] : null;
+		final boolean ff = fastForwarded(i);
+		final double[][][] wb = ff ? new double[state1.G][state1.G][H/2+1] : null;
+		int p;
+		
+		final boolean seg = checkpoint || stored;
+		final int S = seg ? (M-1)/L : 0;
+		for(int s=S; s>=0; s--) {
+			final int a = seg ? s*L : 0, 
+					b = seg ? Math.min(a+L, M) : M;
+			if(checkpoint) forwardSegment(i, a, b);
+			if(stored) loadSegment(i, a, b);
+			for(int j=b-1; j>=a; j--) {
+				if(ff && j+1<b && (p=runStart(i, j+1, a))<=j) {
+					// markers p..j+1 are missing, the same run 
+					// as in the forward, jump to column p-1
+					backwardRun(i, p, j+1, c, trans_c, y, wa, wb);
+					j = p-1;
+				} else {
+					backward(i, j, j+1);
+					if(j<M-1 && trans_c[j])
+						countTrans(i, j, c.trans[j], y, wa, wp);
+				}
+				countEmiss(i, j, c.emiss[j]);
+				if(pmax!=null) pmax(i, j);
+			}
+		}
+	}
+
+	/***
+	 * backward column p-1 from column q over the run p..q of markers 
+	 * missing in sample i, with the expected #jumps and #stays of the 
+	 * transitions p-1..q-1 added to the counts. the states of a missing
+	 * marker have the same emission probability, so the transitions 
+	 * compose into one matrix of gamete transition factors, and the 
+	 * counts of each transition in the run are read off the projection
+	 * of forward column p-1 and the emission-weighted backward column q
+	 * onto the #haplotypes shared by the gametes.
+	 * 
+	 * @param y K workspace
+	 * @param w G*G workspace
+	 * @param wb G*G*(H/2+1) workspace
+	 */
+	private void backwardRun(final int i, final int p, final int q, final CountUnit c, 
+			final boolean[] trans_c, final double[] y, final double[][] w, final double[][][] wb) {
+		// TODO Auto-generated method stub
+		final FBUnit fw = forward[i], bw = backward[i];
+		final int[] ss = sspace[i];
+		final double[] probsMat = bw.probsMat, logscale = bw.logscale;
+		final double[] emiss = obs.emiss(i, q);
+		final int off1 = bw.off(q), off0 = bw.off(p-1);
+		for(int z : ss) y[z] = emiss[z]*probsMat[off1+z];
+		for(int l=q-1; l>=p; l--)
+			logscale[l] = logscale[l+1]+obs.logscale(i, l+1)+Math.log(obs.emiss(i, l)[2]);
+		
+		final double[] a = compose(p, q);
+		state1.aggregate(a, y, 0, probsMat, off0, w);
+		logscale[p-1] = obs.logscale(i, p);
+		bw.scale(p-1, ss);
+		if(p==1 && debug) backwardProbability(i);
+		
+		boolean counted = false;
+		for(int l=p-1; l<q; l++) counted |= trans_c[l];
+		if(!counted) return;
+		
+		// f'(U x V)y = sum_{c0,c1} u[c0]*v[c1]*B[c0][c1], and the #jumps
+		// of transition l is f'(Q x A + A x Q)y with A the transitions 
+		// composed over the run and Q the same with transition l weighted 
+		// by the #jumps. the matrices commute, so Q is the product of 
+		// the transitions before l, the weighted l and those after l.
+		final double[][] B = state1.project(fw.probsMat, fw.off(p-1), y, wb);
+		final int n = a.length;
+		final double[] ba = new double[n], ab = new double[n];
+		for(int c0=0; c0<n; c0++) {
+			for(int c1=0; c1<n; c1++) {
+				ba[c0] += B[c0][c1]*a[c1];
+				ab[c1] += a[c0]*B[c0][c1];
+			}
+		}
+		double total = 0;
+		for(int u=0; u<n; u++) total += a[u]*ba[u];
+		
+		final int r = q-p+1;
+		final double[][] pre = new double[r][], suf = new double[r][];
+		pre[0] = state1.gidentity();
+		for(int u=1; u<r; u++) 
+			pre[u] = state1.gcompose(pre[u-1], transition[p-2+u].gtrans);
+		suf[r-1] = state1.gidentity();
+		for(int u=r-2; u>=0; u--) 
+			suf[u] = state1.gcompose(transition[p+u].gtrans, suf[u+1]);
+		
+		final double exp_c = fw.logscale[p-1]+
+				logscale[p]+
+				obs.logscale(i, p)-
+				fw.probability;
+		double[] g, cnts;
+		double jumps, exp;
+		for(int u=0; u<r; u++) {
+			if(!trans_c[p-1+u]) continue;
+			g = state1.gcompose(state1.gcompose(pre[u], 
+					transition[p-1+u].gjump), suf[u]);
+			jumps = 0;
+			for(int v=0; v<n; v++) jumps += g[v]*(ba[v]+ab[v]);
+			cnts = c.trans[p-1+u];
+			if(exp_c>Constants.MAX_EXP_DOUBLE) { 
+				cnts[0] += Math.exp(Math.log(jumps)+exp_c);
+				cnts[1] += Math.exp(Math.log(H*total-jumps)+exp_c);
+			} else {
+				exp = Math.exp(exp_c);
+				cnts[0] += jumps*exp;
+				cnts[1] += (H*total-jumps)*exp;
+			}
+		}
+	}
+	
+	/***
+	 * gamete transition factors composed over the transitions from
+	 * marker p-1 to marker q
+	 */
+	private double[] compose(final int p, final int q) {
+		// TODO Auto-generated method stub
+		double[] a = transition[p-1].gtrans;
+		for(int l=p; l<q; l++) 
+			a = state1.gcompose(a, transition[l].gtrans);
+		return a;
+	}
+	
+	/***
+	 * last marker of the run of markers missing in sample i from j on.
+	 * a run stops before to and at the end of a member contig. j if j 
+	 * is not missing.
+	 */
+	private int runEnd(final int i, final int j, final int to) {
+		// TODO Auto-generated method stub
+		int q = j;
+		if(obs.cov(i, j)!=0) return q;
+		while(q+1<to && seg_end[q]==-1 && obs.cov(i, q+1)==0) ++q;
+		return q;
+	}
+	
+	/***
+	 * first marker of the run of markers missing in sample i up to q, 
+	 * the runs are the same as of runEnd() from from+1 on.
+	 */
+	private int runStart(final int i, final int q, final int from) {
+		// TODO Auto-generated method stub
+		int p = q;
+		if(obs.cov(i, q)!=0) return p;
+		while(p-1>from && seg_end[p-1]==-1 && obs.cov(i, p-1)==0) --p;
+		return p;
+	}
+	
+	/***
+	 * backward probabilities of markers [from, to). unless to is M
+	 * the column of marker to is expected in the backward unit.
+	 */
+	private void backward(final int i, final int from, final int to) {
+		// TODO Auto-generated method stub
+		final FBUnit bw = backward[i];
+		int[] ss = sspace[i];
+		double[] probsMat = bw.probsMat;
+		double[] logscale = bw.logscale;
+
+		double[] emiss;
+		TransitionUnit t;
+		final int[] hf = state1.hscf;
+		double[] tr;
+		int off0, off1, row;
+
+		// states dropped by the beam-pruned forward are kept zero
+		final boolean bm = beamed[i];
+		final double[] fwMat = forward[i].probsMat;
+		final int[] act = bm ? new int[K] : null; // states kept in the last column
+		int n;
+		
+		int j1 = to-1;
+		if(to==M) {
+			off1 = bw.off(M-1);
+			off0 = forward[i].off(M-1);
+			for(int k : ss) probsMat[off1+k] = bm&&fwMat[off0+k]==0 ? 0 : 1.0;
 			logscale[M-1] = 0;
-			double tmp; 
-			
-			for(int j=M-2; j>=0; j--) {	
-				emiss = ob[j+1].emiss;
-				t = transition[j];
+			j1 = M-2;
+		}
+		double tmp; 
+		
+		final boolean agg = aggregated(i);
+		final double[] y = agg ? new double[K] : null;
+		final double[][] w = agg ? new double[state1.G][state1.G] : null;
+
+		for(int j=j1; j>=from; j--) {	
+			emiss = obs.emiss(i, j+1);
+			t = transition[j];
+			off0 = bw.off(j);
+			off1 = bw.off(j+1);
+			if(agg) {
+				for(int z : ss) y[z] = emiss[z]*probsMat[off1+z];
+				t.aggregate(y, 0, probsMat, off0, w);
+			} else if(bm) {
+				tr = t.trans;
+				n = 0;
+				for(int z : ss) 
+					if(probsMat[off1+z]>0) act[n++] = z;
+				final int offf = forward[i].off(j);
+				for(int k : ss) {
+					if(fwMat[offf+k]==0) {
+						probsMat[off0+k] = 0;
+						continue;
+					}
+					tmp = 0;
+					row = k*K;
+					for(int a=0; a<n; a++) 
+						tmp += tr[hf[row+act[a]]]*emiss[act[a]]*probsMat[off1+act[a]];
+					probsMat[off0+k] = tmp;
+				}
+			} else {
+				tr = t.trans;
 				for(int k : ss) {
 					tmp = 0;
+					row = k*K;
 					for(int z : ss) 
-						tmp += t.trans(k, z)*emiss[z]*probsMat[j+1][z];
-					probsMat[j][k] = tmp;
+						tmp += tr[hf[row+z]]*emiss[z]*probsMat[off1+z];
+					probsMat[off0+k] = tmp;
 				}
-				
-				logscale[j] = ob[j+1].getLogScale();
-				backward[i].scale(j);
 			}
-			
-			double pi = 1.0/ss.length;
-			double p = 0.0;
-			emiss = ob[0].emiss;
-			for(int z : ss)
-				p += pi*emiss[z]*probsMat[0][z];
-			backward[i].probability(p, ob[0].getLogScale());
+
+			logscale[j] = obs.logscale(i, j+1);
+			bw.scale(j, ss);
 		}
-		return;
-	}
 
+		if(from==0 && debug) backwardProbability(i);
+	}
+	
+	/***
+	 * likelihood of sample i from backward column 0, only for 
+	 * checking against the forward in the debug mode
+	 */
+	private void backwardProbability(final int i) {
+		// TODO Auto-generated method stub
+		final FBUnit bw = backward[i];
+		final double[] emiss = obs.emiss(i, 0);
+		final int off0 = bw.off(0);
+		double pi = pi(i);
+		double p = 0.0;
+		for(int z : sspace[i])
+			p += pi*emiss[z]*bw.probsMat[off0+z];
+		bw.probability(p, obs.logscale(i, 0));
+	}
+	
 	@Override
 	public void forward() {
 		// TODO Auto-generated method stub
-		for(int i=0; i<N; i++) {
-			if(fi1ter[i]) continue;
-			
-			Integer[] ss = sspace.get(i);
-			double pi = 1.0/ss.length;
-			
-			double[][] probsMat = forward[i].probsMat;
-			double[] logscale = forward[i].logscale;
-			ObUnit[] ob = obs[i];
-			
-			double[] emiss = ob[0].emiss;
-			TransitionUnit t;
-			
-			for(int k : ss) probsMat[0][k] = pi*emiss[k];
-			logscale[0] = ob[0].getLogScale();
-			double tmp; 
-			
-			for(int j=1; j<M; j++) {
-				
-				emiss = ob[j].emiss;
-				t = transition[j-1];
-				
+		if(blocks>1) {
+			forwardBlocks();
+			return;
+		}
+		parallel(N, this::forward);
+		if(beam>0) {
+			double discard = 0, max = 0;
+			int restored = 0;
+			for(int i=0; i<N; i++) {
+				if(fi1ter[i]) continue;
+				if(beamed[i]) {
+					discard += forward[i].discard;
+					max = Math.max(max, forward[i].discard);
+				} else ++restored;
+			}
+			myLogger.info("beam: probability mass discarded "+discard+" (max "+max+
+					" per sample), "+restored+" samples restored.");
+		}
+		return;
+	}
+	
+	/***
+	 * if beam-pruned the states of a forward column below beam times 
+	 * the maximum of the column are dropped and only the states left 
+	 * are carried to the next column. the backward recursion is run on
+	 * the states left by the forward, so both give the likelihood of 
+	 * the same pruned trellis. the fractions of the mass dropped from
+	 * the columns are added up as a first-order bound of the relative 
+	 * error of the likelihood. a sample over beam_err is run again 
+	 * with all states.
+	 */
+	private void forward(final int i) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return;
+		
+		final FBUnit fw = forward[i];
+		beamed[i] = beam>0;
+		forwardColumns(i);
+		if(beamed[i] && fw.discard>beam_err) {
+			beamed[i] = false;
+			forwardColumns(i);
+		}
+		fw.probability(StatUtils.sum(fw.probsMat, fw.off(M-1), K));
+	}
+	
+	/***
+	 * parallel-in-time forward. the markers are split into blocks and 
+	 * the blocks of all samples are run at the same time, each block
+	 * but the first started afresh at its first marker as if it was 
+	 * marker 0. the blocks are then stitched in turn: a block is run 
+	 * again from the last column of the block before until its column
+	 * is proportional to the one run afresh. from there on the columns
+	 * normalised to one are the same and only the log scales are off 
+	 * by a constant, so a block is run twice over only a few markers. 
+	 */
+	private void forwardBlocks() {
+		// TODO Auto-generated method stub
+		final long[] rerun = new long[N];
+		parallel(N*blocks, t -> forwardBlock(t/blocks, t%blocks));
+		parallel(N, i -> rerun[i] = stitchForward(i));
+		logRerun("forward", rerun);
+	}
+	
+	private void forwardBlock(final int i, final int b) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return;
+		final int a = bound(b), e = bound(b+1);
+		if(b==0) {
+			forward(i, 0, e);
+			return;
+		}
+		final FBUnit fw = forward[i];
+		final double[] emiss = obs.emiss(i, a);
+		final int off = fw.off(a);
+		final double pi = pi(i);
+		for(int k : sspace[i]) fw.probsMat[off+k] = pi*emiss[k];
+		fw.logscale[a] = obs.logscale(i, a);
+		forward(i, a+1, e);
+	}
+	
+	/***
+	 * @return #columns run again
+	 */
+	private long stitchForward(final int i) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return 0;
+		final FBUnit fw = forward[i];
+		final double[] x = new double[K];
+		long rerun = 0;
+		for(int b=1; b<blocks; b++) {
+			final int a = bound(b), e = bound(b+1);
+			int j = a;
+			double delta = 0;
+			for(; j<e; j++) {
+				final double lx = fw.logscale[j];
+				System.arraycopy(fw.probsMat, fw.off(j), x, 0, K);
+				forward(i, j, j+1);
+				++rerun;
+				if(!Double.isNaN(delta = couple(fw, j, x, lx, sspace[i]))) break;
+			}
+			if(j==e) continue;
+			for(int l=j+1; l<e; l++) fw.logscale[l] += delta;
+		}
+		// the log-likelihood of the first member contig run afresh
+		fw.segll(Ms[0]-1);
+		fw.probability(StatUtils.sum(fw.probsMat, fw.off(M-1), K));
+		return rerun;
+	}
+	
+	private void forwardColumns(final int i) {
+		// TODO Auto-generated method stub
+		final FBUnit fw = forward[i];
+		if(checkpoint) {
+			// keep the column before each segment
+			for(int a=0; a<M; a+=L) {
+				forwardSegment(i, a, Math.min(a+L, M));
+				if(a+L<M) System.arraycopy(fw.probsMat, 
+						fw.off(a+L-1), fw.checkpoints[a/L], 0, K);
+			}
+		} else if(stored) {
+			// the window is carried on from the last column of each 
+			// segment and the columns computed are put in the store
+			fw.lo = 0;
+			for(int a=0; a<M; a+=L) {
+				final int b = Math.min(a+L, M);
+				if(a>0) {
+					System.arraycopy(fw.probsMat, fw.off(a-1), fw.probsMat, 0, K);
+					fw.lo = a-1;
+				}
+				forward(i, a, b);
+				for(int j=a; j<b; j++) fw.store.put(j, fw.probsMat, fw.off(j));
+			}
+		} else {
+			forward(i, 0, M);
+		}
+	}
+	
+	/***
+	 * forward probabilities of segment [a, b) from the checkpoint
+	 */
+	private void forwardSegment(final int i, final int a, final int b) {
+		// TODO Auto-generated method stub
+		final FBUnit fw = forward[i];
+		if(a==0) {
+			fw.lo = 0;
+		} else {
+			System.arraycopy(fw.checkpoints[a/L-1], 0, fw.probsMat, 0, K);
+			fw.lo = a-1;
+		}
+		forward(i, a, b);
+	}
+	
+	/***
+	 * forward probabilities of segment [a, b) and the column before 
+	 * from the store
+	 */
+	private void loadSegment(final int i, final int a, final int b) {
+		// TODO Auto-generated method stub
+		final FBUnit fw = forward[i];
+		fw.lo = a==0 ? 0 : a-1;
+		for(int j=fw.lo; j<b; j++) fw.store.get(j, fw.probsMat, fw.off(j));
+	}
+	
+	/***
+	 * forward probabilities of markers [from, to). unless from is 0 
+	 * the column of marker from-1 is expected in the forward unit.
+	 */
+	private void forward(final int i, final int from, final int to) {
+		// TODO Auto-generated method stub
+		final FBUnit fw = forward[i];
+		int[] ss = sspace[i];
+		double pi = pi(i);
+
+		double[] probsMat = fw.probsMat;
+		double[] logscale = fw.logscale;
+
+		double[] emiss;
+		TransitionUnit t;
+		final int[] hf = state1.hscf;
+		double[] tr;
+		int off0, off1, row;
+
+		final boolean bm = beamed[i];
+		final int[] act = bm ? new int[K] : null; // states kept in the last column
+		int n;
+		
+		int j0 = from;
+		if(from==0) {
+			emiss = obs.emiss(i, 0);
+			off0 = fw.off(0);
+			for(int k : ss) probsMat[off0+k] = pi*emiss[k];
+			logscale[0] = obs.logscale(i, 0);
+			if(bm) {
+				fw.discard = 0;
+				beam(fw, ss, 0);
+			}
+			if(seg_end[0]==0) fw.segll(0);
+			j0 = 1;
+		}
+		double tmp; 
+		
+		final boolean agg = aggregated(i);
+		final double[][] w = agg ? new double[state1.G][state1.G] : null;
+		final boolean ff = fastForwarded(i);
+		int q;
+
+		for(int j=j0; j<to; j++) {
+
+			emiss = obs.emiss(i, j);
+			t = transition[j-1];
+			off0 = fw.off(j-1);
+			off1 = fw.off(j);
+
+			if(ff && j>from && (q=runEnd(i, j, to))>j) {
+				// markers j..q are missing, column q is reached 
+				// with the transitions composed over the run
+				final double[] a = compose(j, q);
+				for(; j<q; j++)
+					logscale[j] = logscale[j-1]+obs.logscale(i, j)+Math.log(obs.emiss(i, j)[2]);
+				emiss = obs.emiss(i, q);
+				off1 = fw.off(q);
+				state1.aggregate(a, probsMat, off0, probsMat, off1, w);
+				for(int k : ss) probsMat[off1+k] *= emiss[k];
+			} else if(agg) {
+				t.aggregate(probsMat, off0, probsMat, off1, w);
+				for(int k : ss) probsMat[off1+k] *= emiss[k];
+			} else if(bm) {
+				tr = t.trans;
+				n = 0;
+				for(int z : ss) 
+					if(probsMat[off0+z]>0) act[n++] = z;
 				for(int k : ss) {
 					tmp = 0;
+					row = k*K;
+					for(int a=0; a<n; a++)
+						tmp += probsMat[off0+act[a]]
+								*tr[hf[row+act[a]]];
+					probsMat[off1+k] = emiss[k]*tmp;
+				}
+				beam(fw, ss, j);
+			} else {
+				tr = t.trans;
+				for(int k : ss) {
+					tmp = 0;
+					row = k*K;
 					for(int z : ss)
-						tmp += probsMat[j-1][z]
-								*t.trans(z, k);
-					probsMat[j][k] = emiss[k]*tmp;
+						tmp += probsMat[off0+z]
+								*tr[hf[row+z]];
+					probsMat[off1+k] = emiss[k]*tmp;
 				}
-				
-				logscale[j] = ob[j].getLogScale();
-				forward[i].scale(j);
 			}
-			forward[i].probability(StatUtils.sum(probsMat[M-1]));
+
+			logscale[j] = obs.logscale(i, j);
+			fw.scale(j, ss);
+			if(seg_end[j]==0) fw.segll(j);
 		}
-		return;
+	}
+	
+	/***
+	 * drops the states of forward column j below beam times the 
+	 * maximum of the column. the fraction of the mass dropped is
+	 * added to the discarded mass of the forward unit.
+	 */
+	private void beam(final FBUnit fw, final int[] ss, final int j) {
+		// TODO Auto-generated method stub
+		final double[] probsMat = fw.probsMat;
+		final int off = fw.off(j);
+		double max = 0, sum = 0, drop = 0;
+		for(int k : ss) 
+			if(probsMat[off+k]>max) max = probsMat[off+k];
+		final double cut = max*beam;
+		for(int k : ss) {
+			sum += probsMat[off+k];
+			if(probsMat[off+k]<cut) {
+				drop += probsMat[off+k];
+				probsMat[off+k] = 0;
+			}
+		}
+		if(sum>0) fw.discard += drop/sum;
 	}
 
+	/***
+	 * log-likelihoods of the member contigs, each as a model of its own.
+	 * the first contig is taken from the forward pass of the last 
+	 * iteration, which starts at it. the others are run on their own
+	 * so that the value of a contig does not depend on the contigs 
+	 * placed before it in the superscaffold.
+	 */
+	@Override
+	protected double[] modelLoglik() {
+		// TODO Auto-generated method stub
+		// the factorial HMM has no forward units
+		if(forward==null) return super.modelLoglik();
+		final double[] model_ll = new double[Ms.length];
+		for(int i=0; i<N; i++) {
+			if(fi1ter[i]) continue;
+			model_ll[0] += forward[i].segll;
+		}
+		for(int s=1, k=Ms[0]; s<Ms.length; s++) {
+			model_ll[s] = loglik(k, k+Ms[s]);
+			k += Ms[s];
+		}
+		return model_ll;
+	}
+	
 	@Override
 	protected double loglik(int fromIndex, int toIndex) {
 		// TODO Auto-generated method stub
@@ -486,51 +1419,56 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 		for(int i=0; i<N; i++) {
 			if(fi1ter[i]) continue;
 			
-			Integer[] ss = sspace.get(i);
-			double pi = 1.0/ss.length;
+			int[] ss = sspace[i];
+			double pi = pi(i);
 			
-			double[][] probsMat = new double[m][K];
+			double[] probsMat = new double[m*K];
 			double[] logscale = new double[m];
-			ObUnit[] ob = obs[i];
 			
-			double[] emiss = ob[fromIndex].emiss;
-			TransitionUnit t;
+			double[] emiss = obs.emiss(i, fromIndex);
+			final int[] hf = state1.hscf;
+			double[] tr;
+			int off0, off1, row;
 			
-			for(int k : ss) probsMat[0][k] = pi*emiss[k];
-			logscale[0] = ob[fromIndex].getLogScale();
+			for(int k : ss) probsMat[k] = pi*emiss[k];
+			logscale[0] = obs.logscale(i, fromIndex);
 			double tmp; 
 			
 			for(int j=1; j<m; j++) {
 				
-				emiss = ob[fromIndex+j].emiss;
-				t = transition[fromIndex+j-1];
+				emiss = obs.emiss(i, fromIndex+j);
+				tr = transition[fromIndex+j-1].trans;
+				off0 = (j-1)*K;
+				off1 = j*K;
 				
 				for(int k : ss) {
 					tmp = 0;
+					row = k*K;
 					for(int z : ss)
-						tmp += probsMat[j-1][z]
-								*t.trans(z, k);
-					probsMat[j][k] = emiss[k]*tmp;
+						tmp += probsMat[off0+z]
+								*tr[hf[row+z]];
+					probsMat[off1+k] = emiss[k]*tmp;
 				}
 				
-				logscale[j] = ob[fromIndex+j].getLogScale();
+				logscale[j] = obs.logscale(i, fromIndex+j);
 				scale(logscale, probsMat, j);
 			}
-			probability += Math.log(StatUtils.sum(probsMat[m-1]))+logscale[m-1];
+			probability += Math.log(StatUtils.sum(probsMat, (m-1)*K, K))+logscale[m-1];
 		}
 
 		return probability;	
 	}
 	
-	protected void scale(final double[] logscale, final double[][] probsMat, final int i) {
+	protected void scale(final double[] logscale, final double[] probsMat, final int i) {
 		// TODO Auto-generated method stub
-		double[] probs = probsMat[i];
+		// probsMat is a flat M*K matrix and row i is scaled
+		final int from = i*K, to = from+K;
 		double min = Double.POSITIVE_INFINITY,
 				max = Double.NEGATIVE_INFINITY;
-		for(int k=0; k<probs.length; k++) {
-			if(probs[k]>0) {
-				min = probs[k]<min ? probs[k] : min;
-				max = probs[k]>max ? probs[k] : max;
+		for(int k=from; k<to; k++) {
+			if(probsMat[k]>0) {
+				min = probsMat[k]<min ? probsMat[k] : min;
+				max = probsMat[k]>max ? probsMat[k] : max;
 			}
 		}
 
@@ -539,8 +1477,8 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 				max<Constants.threshMax) {
 			logscale[i] += 
 					Constants.logThreshMax;
-			for(int k=0; k<probs.length; k++)
-				probs[k] /= Constants.threshMax;
+			for(int k=from; k<to; k++)
+				probsMat[k] /= Constants.threshMax;
 		}
 	}
 	
@@ -554,18 +1492,12 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 				throw new RuntimeException("Different likelihood by forward and backward algorithm: forward, "+
 						forward[i].probability+"; backward, "+backward[i].probability);
 		}
-	}
-
-	public double loglik1() {
-		// TODO Auto-generated method stub
-		if(iteration==0)
-			return Double.NEGATIVE_INFINITY;
-		else {
-			double probability = 0;
-			for(int i=0; i<N; i++) 
-				probability += weights[i==parents_i[0]||i==parents_i[1]?0:1]*this.backward[i].probability;
-			return probability;
-		}
+		// the first member contig must score as it would on its own
+		if(beam>0) return;
+		double ll0 = modelLoglik()[0], ll1 = loglik(0, Ms[0]);
+		if(Math.abs(ll0-ll1)>1e-6*Math.abs(ll1))
+			throw new RuntimeException("Different likelihood of the first contig by forward algorithm and on its own: forward, "+
+					ll0+"; on its own, "+ll1+"!!!");
 	}
 
 	@Override
@@ -584,6 +1516,12 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 	@Override
 	public void write(String output, String experiment, String scaff) {
 		// TODO Auto-generated method stub
+		if(sspace0!=null||beam>0) {
+			// decoded and evaluated with the full state spaces
+			if(sspace0!=null) this.expand();
+			this.beam = 0;
+			this.forward();
+		}
 		this.findPath();
 
 		String root = experiment+"."+scaff+"."+System.nanoTime();
@@ -608,8 +1546,11 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 		private void writeTransitionModel() {
 			try {
 				out.putNextEntry(new ZipEntry("transition.txt"));
-				for(int i=0; i<M-1; i++)
-					out.write((de.getId()+"_"+de.getPosition()[i]+"\t\t\t"+transition[i].getJump()+"\n").getBytes());
+				// no jumps between the SNPs collapsed into one marker
+				final DataEntry snp = snpDE();
+				for(int s=0; s<snp.modelLength()-1; s++)
+					out.write((snp.getId()+"_"+snp.getPosition()[s]+"\t\t\t"+(marker(s)==marker(s+1) ? 
+							mu_J_p : transition[marker(s)].getJump())+"\n").getBytes());
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -620,7 +1561,12 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 	protected class StateUnit1 extends StateUnit {
 		private final int confs; // #confs
 		private final int[][] confs_hsc; // confs of compound hidden states
+		private final int[] hscf; // flat confs_hsc, hscf[i*K+j]=confs_hsc[i][j]
 		private final int[][] confs_cnt; // confs for probability calculation
+		private final int G; // #gametes per parent
+		private final int[][] gconfs; // #haplotypes shared by two gametes
+		private int[][] comns; // gamete probability calculation look up table
+		private double[][][] gmult; // products of the gamete transition classes
 		/***
 		 * p is the probability of jumps
 		 * 
@@ -635,7 +1581,10 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			super(h);
 			confs = (h/2+1)*(h/2+2)/2+1;
 			confs_hsc = new int[hsc.length][hsc.length];
+			hscf = new int[hsc.length*hsc.length];
 			confs_cnt = new int[confs][h+1];
+			G = (int) Math.round(Math.sqrt(hsc.length-2));
+			gconfs = new int[G][G];
 			
 			this.configure();
 		}
@@ -684,8 +1633,33 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 					confs_hsc[i][j] = confs_str.get(comn0+"_"+comn1);
 				}
 			}
+			for(int i=0; i<k; i++)
+				System.arraycopy(confs_hsc[i], 0, hscf, i*k, k);
+			// make gamete look up table
+			// compound hidden state 2+p*G+m is made of
+			// paternal gamete p and maternal gamete m
+			for(int i=0; i<G; i++) {
+				System.arraycopy(hsc[2+i*G], 0, h0i, 0, h);
+				for(int j=0; j<G; j++) {
+					System.arraycopy(hsc[2+j*G], 0, h0j, 0, h);
+					gconfs[i][j] = hsComn(h0i, h0j);
+				}
+			}
+			// make gamete transition class multiplication table
+			// A_a*A_b = sum_g gmult[a][b][g]*A_g, A_g[i][j] is 1 if 
+			// gametes i and j share g haplotypes or 0 otherwise
+			gmult = new double[h+1][h+1][h+1];
+			final boolean[] seen = new boolean[h+1];
+			for(int j=0; j<G; j++) {
+				int g = gconfs[0][j];
+				if(seen[g]) continue;
+				seen[g] = true;
+				for(int i=0; i<G; i++)
+					++gmult[gconfs[0][i]][gconfs[i][j]][g];
+			}
+			
 			// make probability calculation look up table
-			int[][] comns = new int[h+1][h+1];
+			comns = new int[h+1][h+1];
 			for(int i=0; i<=h; i++) {
 				for(int j=0; j<=i; j++) {
 					comns[i][j] = f(h, i, j);
@@ -755,6 +1729,27 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			}
 		}
 		
+		public void calcGameteProbs(double[] gtrans, double[] gjump, double p) {
+			// the transition probability factorises into the two gametes
+			// trans[confs_hsc[z][k]] = gtrans[c0]*gtrans[c1]
+			// with c0 and c1 the #haplotypes shared by the paternal and
+			// the maternal gametes of z and k, respectively
+			// gjump[c] is gtrans[c] weighted by the expected #jumps
+			final int h = hs.length/2, h2 = h/2;
+			final double stay = 1-p;
+			final double jump = p/(h-1);
+			double p1;
+			for(int c=0; c<=h2; c++) {
+				gtrans[c] = 0;
+				gjump[c] = 0;
+				for(int u=0; u<=c; u++) {
+					p1 = comns[c][u]*Math.pow(jump, h2-u)*Math.pow(stay, u);
+					gtrans[c] += p1;
+					gjump[c] += (h2-u)*p1;
+				}
+			}
+		}
+		
 		private int hsComn(int[] h1, int[] h2) {
 			// TODO Auto-generated method stub
 			int h = h1.length;
@@ -773,6 +1768,131 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			return c;
 		}
 		
+		/***
+		 * to[k] = sum_z from[z]*trans(z,k) over the f1 progeny states
+		 * with trans(z,k) given by the gamete transition factors a
+		 * 
+		 * predecessor mass is grouped by the #haplotypes shared with the
+		 * target for the maternal gamete first and then for the paternal
+		 * gamete, which costs O(K*G) rather than O(K^2). as transitions are 
+		 * symmetric this is also the backward step if from is the 
+		 * emission-weighted backward column.
+		 * 
+		 * @param fo offset of the column in from
+		 * @param to_off offset of the column in to
+		 * @param w G*G workspace
+		 */
+		protected void aggregate(final double[] a, final double[] from, final int fo, 
+				final double[] to, final int to_off, final double[][] w) {
+			final int[][] gc = gconfs;
+			int off;
+			double x;
+			int[] gz;
+			double[] wz;
+			for(int z0=0; z0<G; z0++) {
+				wz = w[z0];
+				Arrays.fill(wz, 0);
+				off = fo+2+z0*G;
+				for(int z1=0; z1<G; z1++) {
+					x = from[off+z1];
+					if(x==0) continue;
+					gz = gc[z1];
+					for(int k1=0; k1<G; k1++)
+						wz[k1] += x*a[gz[k1]];
+				}
+			}
+			Arrays.fill(to, to_off+2, to_off+2+G*G, 0);
+			for(int z0=0; z0<G; z0++) {
+				wz = w[z0];
+				gz = gc[z0];
+				for(int k0=0; k0<G; k0++) {
+					x = a[gz[k0]];
+					off = to_off+2+k0*G;
+					for(int k1=0; k1<G; k1++)
+						to[off+k1] += x*wz[k1];
+				}
+			}
+		}
+		
+		/***
+		 * x*y of two matrices of gamete transition factors
+		 */
+		protected double[] gcompose(final double[] x, final double[] y) {
+			final int n = x.length;
+			final double[] z = new double[n];
+			double[] m;
+			double xy;
+			for(int a=0; a<n; a++) {
+				if(x[a]==0) continue;
+				for(int b=0; b<n; b++) {
+					if(y[b]==0) continue;
+					xy = x[a]*y[b];
+					m = gmult[a][b];
+					for(int g=0; g<n; g++)
+						z[g] += xy*m[g];
+				}
+			}
+			return z;
+		}
+		
+		/***
+		 * gamete transition factors of the identity matrix
+		 */
+		protected double[] gidentity() {
+			final double[] x = new double[gmult.length];
+			x[x.length-1] = 1.0;
+			return x;
+		}
+		
+		/***
+		 * B[c0][c1] = sum f[z]*y[k] over the pairs of f1 progeny states
+		 * z and k of which the paternal gametes share c0 haplotypes and 
+		 * the maternal gametes share c1. f'(U x V)y = sum_{c0,c1} 
+		 * u[c0]*v[c1]*B[c0][c1] for the matrices of gamete transition 
+		 * factors u and v.
+		 * 
+		 * @param fo offset of the column in f
+		 * @param w G*G*(H/2+1) workspace
+		 */
+		protected double[][] project(final double[] f, final int fo, 
+				final double[] y, final double[][][] w) {
+			final int n = gmult.length;
+			int off;
+			double x;
+			int[] gz;
+			double[][] wz;
+			for(int z0=0; z0<G; z0++) {
+				wz = w[z0];
+				clear(wz);
+				off = fo+2+z0*G;
+				for(int z1=0; z1<G; z1++) {
+					x = f[off+z1];
+					if(x==0) continue;
+					gz = gconfs[z1];
+					for(int k1=0; k1<G; k1++)
+						wz[k1][gz[k1]] += x;
+				}
+			}
+			final double[][] B = new double[n][n];
+			double[] b, wk;
+			for(int z0=0; z0<G; z0++) {
+				wz = w[z0];
+				gz = gconfs[z0];
+				for(int k0=0; k0<G; k0++) {
+					b = B[gz[k0]];
+					off = 2+k0*G;
+					for(int k1=0; k1<G; k1++) {
+						x = y[off+k1];
+						if(x==0) continue;
+						wk = wz[k1];
+						for(int g=0; g<n; g++)
+							b[g] += wk[g]*x;
+					}
+				}
+			}
+			return B;
+		}
+		
 		protected int getConfs() {
 			return this.confs;
 		}
@@ -782,7 +1902,15 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 		}
 		
 		protected int hsc(int i, int j) {
-			return confs_hsc[i][j];
+			return hscf[i*hsc.length+j];
+		}
+		
+		protected int getG() {
+			return this.G;
+		}
+		
+		protected int[][] getGconfs() {
+			return this.gconfs;
 		}
 	}
 
@@ -793,7 +1921,8 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 		private double jump;
 		protected final double[] count;
 		private final double[][] cnts_prior; // priors for counting jumps
-		
+		private final double[] gtrans; // gamete transition factors
+		private final double[] gjump;  // gamete transition factors weighted by #jumps
 		
 		public TransitionUnit(final double distance,
 				final int K) {
@@ -803,12 +1932,84 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			this.trans = new double[K];
 			this.count = new double[2];
 			this.cnts_prior = new double[K][2];
+			this.gtrans = new double[H/2+1];
+			this.gjump = new double[H/2+1];
 			this.updatec();
 		}
 
 		private void updatec() {
 			// TODO Auto-generated method stub
 			state1.calcProbs(trans, cnts_prior, jump);
+			state1.calcGameteProbs(gtrans, gjump, jump);
+		}
+		
+		/***
+		 * to[k] = sum_z from[z]*trans(z,k) over the f1 progeny states,
+		 * see StateUnit1.aggregate()
+		 * 
+		 * @param fo offset of the column in from
+		 * @param to_off offset of the column in to
+		 * @param w G*G workspace
+		 */
+		protected void aggregate(final double[] from, final int fo, 
+				final double[] to, final int to_off, final double[][] w) {
+			state1.aggregate(gtrans, from, fo, to, to_off, w);
+		}
+		
+		/***
+		 * expected #jumps and #stays of the haplotypes between the two 
+		 * markers, i.e., sum_{a,b} f[a]*trans(a,b)*y[b]*cnts_prior[hsc(a,b)]
+		 * over the f1 progeny states, computed with the gamete factors
+		 * 
+		 * @param fo offset of the column in f
+		 * @param wa G*G workspace
+		 * @param wp G*G workspace
+		 */
+		protected double[] aggregateCount(final double[] f, final int fo, final double[] y, 
+				final double[][] wa, final double[][] wp) {
+			final int G = state1.G;
+			final int[][] gc = state1.gconfs;
+			final double[] a = gtrans, g = gjump;
+			int off, c;
+			double x;
+			int[] gz;
+			double[] waz, wpz;
+			for(int z0=0; z0<G; z0++) {
+				waz = wa[z0];
+				wpz = wp[z0];
+				Arrays.fill(waz, 0);
+				Arrays.fill(wpz, 0);
+				off = fo+2+z0*G;
+				for(int z1=0; z1<G; z1++) {
+					x = f[off+z1];
+					if(x==0) continue;
+					gz = gc[z1];
+					for(int k1=0; k1<G; k1++) {
+						c = gz[k1];
+						waz[k1] += x*a[c];
+						wpz[k1] += x*g[c];
+					}
+				}
+			}
+			double total = 0, jumps = 0, ra, rp;
+			for(int z0=0; z0<G; z0++) {
+				waz = wa[z0];
+				wpz = wp[z0];
+				gz = gc[z0];
+				for(int k0=0; k0<G; k0++) {
+					off = 2+k0*G;
+					ra = 0;
+					rp = 0;
+					for(int k1=0; k1<G; k1++) {
+						ra += waz[k1]*y[off+k1];
+						rp += wpz[k1]*y[off+k1];
+					}
+					c = gz[k0];
+					total += a[c]*ra;
+					jumps += g[c]*ra+a[c]*rp;
+				}
+			}
+			return new double[]{jumps, H*total-jumps};
 		}
 
 		protected void update(double jump) {
@@ -829,7 +2030,7 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 		
 		private double prior() {
 			// TODO Auto-generated method stub
-			double p = new BetaDistribution(Constants.rg, 
+			double p = new BetaDistribution(rg, 
 					(1-base_r)*mu_J_e, base_r*mu_J_e).sample()*0.5;
 			p = Math.max(p, mu_J_p);
 			p = Math.min(p, 0.5-mu_J_p);
@@ -837,11 +2038,20 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 		}
 		
 		protected void addCount(int from, int to, double n) {
+			addCount(from, to, n, count);
+		}
+		
+		protected void addCount(int from, int to, double n, double[] count) {
 			int hsc = state1.hsc(from, to);
 			count[0] += cnts_prior[hsc][0]*n;
 			count[1] += cnts_prior[hsc][1]*n;
 		}
 		
+		protected void addCount(double jumps, double stays) {
+			count[0] += jumps;
+			count[1] += stays;
+		}
+		
 		protected double trans(int from, int to) {
 			return trans[state1.hsc(from, to)];
 		}
@@ -854,6 +2064,14 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			return count;
 		}
 		
+		protected double[] getGtrans() {
+			return gtrans;
+		}
+		
+		protected double[] getGjump() {
+			return gjump;
+		}
+		
 		protected double getDistance() {
 			return distance;
 		}
@@ -869,8 +2087,9 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 	}
 	
 	protected class ViterbiUnit {
-		protected double[][] v;
-		protected int[][] trace;
+		protected double[] v;  // flat, last two columns in turn
+		protected int[] trace; // flat (M-1)*K
+		protected int[] act; // states kept in a column
 		protected double[] logscale;
 		protected int ends = -1; // end state
 		protected double probability = 0;
@@ -878,8 +2097,9 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 		public ViterbiUnit() {
 			// TODO Auto-generated constructor stub
 			super();
-			this.v = new double[M][K];
-			this.trace = new int[M-1][K];
+			this.v = new double[2*K];
+			this.trace = new int[(M-1)*K];
+			this.act = new int[K];
 			this.logscale = new double[M];
 		}
 
@@ -888,60 +2108,38 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			return probability;
 		}
 
+		protected int off(final int i) {
+			return (i&1)*K;
+		}
+		
 		public void finalise() {
+			final int off = off(M-1);
 			for(int i=0; i<K; i++) {
-				if(v[M-1][i]>probability) {
+				if(v[off+i]>probability) {
 					ends = i;
-					probability = v[M-1][i];
+					probability = v[off+i];
 				}
 			}
 			probability = Math.log(probability)+logscale[M-1];
 		}
 		
-		protected void trace(int[] path, String[] path_str) {
+		protected void trace(int[] path) {
 			int tr = ends;
 			path[M-1] = tr;
-			path_str[M-1] = state1.hsc_str[tr];
 			for(int i=M-2; i>=0; i--) {
-				tr = trace[i][tr];
+				tr = trace[i*K+tr];
 				path[i] = tr;
-				path_str[i] = maxMatch(state1.hsc_str[tr], 
-						path_str[i+1]);
 			}
 			return;
 		}
 		
-		protected String maxMatch(String str1, String str2) {
-			// TODO Auto-generated method stub
-			final String[] s1 = str1.split("_");
-			final String[] s2 = str2.split("_");
-			final Map<String, Integer> a = new HashMap<String, Integer>();
-			for(int i=0; i<s2.length; i++) a.put(s2[i], i);
-			final String[] s = new String[s1.length];
-			for(int i=0; i<s.length; i++) {
-				if(a.containsKey(s1[i])) {
-					s[a.get(s1[i])] = s1[i];
-					s1[i] = null;
-				}
-			}
-			int i = 0, j = 0;
-			while(i<s.length) {
-				if(s1[i]!=null) {
-					while(j<s.length && s[j]!=null)
-						++j;
-					s[j] = s1[i];
-				}
-				++i;
-			}
-			return StringUtils.join(s, '_');
-		}
-
 		protected void scale(final int i) {
 			// TODO Auto-generated method stub
-			double[] probs = this.v[i];
+			final double[] probs = this.v;
+			final int from = off(i), to = from+K;
 			double min = Double.POSITIVE_INFINITY,
 					max = Double.NEGATIVE_INFINITY;
-			for(int k=0; k<probs.length; k++) {
+			for(int k=from; k<to; k++) {
 				if(probs[k]>0) {
 					min = probs[k]<min ? probs[k] : min;
 					max = probs[k]>max ? probs[k] : max;
@@ -952,7 +2150,7 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			if(min<Constants.threshMin &&
 					max<Constants.threshMax) {
 				this.logscale[i] += Constants.logThreshMax;
-				for(int k=0; k<probs.length; k++)
+				for(int k=from; k<to; k++)
 					probs[k] /= Constants.threshMax;
 			}
 		}
@@ -962,21 +2160,62 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			BaumWelchTrainer.clear(v);
 			BaumWelchTrainer.clear(trace);
 			BaumWelchTrainer.clear(logscale);
+			ends = -1;
+			probability = 0;
+		}
+	}
+	
+	protected class CountUnit { /** expected counts of a block of samples */
+		protected final double[][][] emiss;
+		protected final double[][] trans;
+		
+		public CountUnit() {
+			this.emiss = new double[M][][];
+			for(int i=0; i<M; i++) {
+				double[][] c = emission[i].getCount();
+				this.emiss[i] = new double[c.length][c[0].length];
+			}
+			this.trans = new double[M-1][2];
+		}
+		
+		protected void clear() {
+			// TODO Auto-generated method stub
+			BaumWelchTrainer.clear(emiss);
+			BaumWelchTrainer.clear(trans);
 		}
 	}
 	
 	protected class FBUnit { /** forward/backward unit */
-		protected double[][] probsMat;
+		protected double[] probsMat; // flat, column of marker i at off(i)
 		protected double[] logscale;
 		protected double probability;
 		protected final boolean backward;
+		protected int lo = 0; // marker of the first column kept
+		protected boolean rolling = false; // two columns used in turn
+		protected double[][] checkpoints = null; // forward columns before each segment
+		protected FBStore store = null; // forward columns of all markers if stored
+		protected double discard = 0; // probability mass dropped by the beam
+		protected double segll = 0; // log-likelihood up to the end of the first member contig
 
 		public FBUnit(boolean backward) {
+			this(backward, M);
+		}
+		
+		public FBUnit(boolean backward, int columns) {
 			this.backward = backward;
 			this.probability = 0;
-			this.probsMat = new double[M][K];
+			this.probsMat = new double[columns*K];
 			this.logscale = new double[M];
 		}
+		
+		protected int off(final int i) {
+			return rolling ? (i&1)*K : (i-lo)*K;
+		}
+		
+		protected void segll(final int i) {
+			// TODO Auto-generated method stub
+			this.segll = Math.log(StatUtils.sum(probsMat, off(i), K))+logscale[i];
+		}
 
 		public double probability() {
 			// TODO Auto-generated method stub
@@ -1002,44 +2241,191 @@ public class BaumWelchTrainer extends EmissionModel implements ForwardBackwardTr
 			this.probability += logscale;
 		}
 
-
-		protected void scale() {
+		/***
+		 * column i is normalised over the states ss (Rabiner, 1989), 
+		 * the log of the normaliser is added to the log scale carried
+		 * on from the last column. the other states are kept zero.
+		 */
+		protected void scale(final int i, final int[] ss) {
 			// TODO Auto-generated method stub
-			this.logscale = new double[this.probsMat.length];
-			if(this.backward)
-				for(int i=this.logscale.length-1; i>=0; i++)
-					this.scale(i);
-			else
-				for(int i=0; i<this.logscale.length; i++)
-					this.scale(i);
+			final double[] probs = this.probsMat;
+			final int off = off(i);
+			double s = 0;
+			for(int k : ss) s += probs[off+k];
+
+			int dv = this.backward ? 1 : -1;
+			this.logscale[i] += this.logscale[i+dv];
+			if(s==0) return;
+			this.logscale[i] += Math.log(s);
+			final double r = 1.0/s;
+			for(int k : ss) probs[off+k] *= r;
 		}
+	}
 
-		protected void scale(final int i) {
+	/***
+	 * forward columns of all markers of a sample, either as floats on 
+	 * the heap or as doubles in a direct buffer off the heap. the 
+	 * scaled columns could be as small as Constants.threshMin, out of 
+	 * the range of floats, so each column is kept as floats relative
+	 * to its maximum with the maximum as a double.
+	 */
+	protected class FBStore {
+		private final float[] f; // columns relative to their maxima
+		private final double[] fmax; // maximum of each column
+		private final DoubleBuffer d;
+		
+		public FBStore() {
+			// TODO Auto-generated constructor stub
+			if(storage==Storage.FLOAT) {
+				this.f = new float[M*K];
+				this.fmax = new double[M];
+				this.d = null;
+			} else {
+				if((long) M*K*8>Integer.MAX_VALUE)
+					throw new RuntimeException("forward matrix too large for a direct buffer!!!");
+				this.f = null;
+				this.fmax = null;
+				this.d = ByteBuffer.allocateDirect(M*K*8)
+						.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			}
+		}
+		
+		protected void put(final int j, final double[] probsMat, final int off) {
 			// TODO Auto-generated method stub
-			double[] probs = this.probsMat[i];
-			double min = Double.POSITIVE_INFINITY,
-					max = Double.NEGATIVE_INFINITY;
-			for(int k=0; k<probs.length; k++) {
-				if(probs[k]>0) {
-					min = probs[k]<min ? probs[k] : min;
-					max = probs[k]>max ? probs[k] : max;
-				}
+			if(d!=null) {
+				d.position(j*K);
+				d.put(probsMat, off, K);
+				return;
 			}
-
-			int dv = this.backward ? 1 : -1;
-			this.logscale[i] += this.logscale[i+dv];
-			if(min<Constants.threshMin &&
-					max<Constants.threshMax) {
-				this.logscale[i] += 
-						Constants.logThreshMax;
-				for(int k=0; k<probs.length; k++)
-					probs[k] /= Constants.threshMax;
+			double max = 0;
+			for(int k=off; k<off+K; k++) 
+				if(probsMat[k]>max) max = probsMat[k];
+			fmax[j] = max;
+			final int o = j*K;
+			for(int k=0; k<K; k++) 
+				f[o+k] = max==0 ? 0 : (float) (probsMat[off+k]/max);
+		}
+		
+		protected void get(final int j, final double[] probsMat, final int off) {
+			// TODO Auto-generated method stub
+			if(d!=null) {
+				d.position(j*K);
+				d.get(probsMat, off, K);
+				return;
 			}
+			final double max = fmax[j];
+			final int o = j*K;
+			for(int k=0; k<K; k++) 
+				probsMat[off+k] = f[o+k]*max;
 		}
 	}
-
+	
 	public void modifyTransAlter(int trans_alter) {
 		// TODO Auto-generated method stub
 		this.trans_alter = trans_alter;
 	}
+	
+	/***
+	 * warm start of the jump probabilities between two markers that are 
+	 * adjacent in this model and in one of the trained models, mixed with 
+	 * the random initialisation by weight mu_W. the jumps between two 
+	 * member contigs of a superscaffold are left to be trained.
+	 * 
+	 * @return #intervals matched
+	 */
+	public int warmStartJumps(ModelReader... models) {
+		// TODO Auto-generated method stub
+		final boolean[] matched = new boolean[M-1];
+		Integer a, b;
+		int n = 0;
+		for(ModelReader model : models) {
+			final List<String[]> snps = model.getSnps();
+			final double[] jumps = model.getJumps();
+			final Map<String, Integer> index = warmIndex(snps);
+			for(int i=0; i<M-1; i++) {
+				if(matched[i]) continue;
+				a = index.get(true_id[i]+"_"+true_pos[i]);
+				b = index.get(true_id[i+1]+"_"+true_pos[i+1]);
+				if(a==null||b==null||Math.abs(a-b)!=1) continue;
+				transition[i].update(Math.min(Math.max((1-mu_W)*jumps[Math.min(a, b)]+
+						mu_W*transition[i].jump, mu_J_p), 0.5-mu_J_p));
+				matched[i] = true;
+				++n;
+			}
+		}
+		return n;
+	}
+	
+	public void modifyBeam(double beam, double beam_err) {
+		// TODO Auto-generated method stub
+		this.beam = beam;
+		this.beam_err = beam_err;
+		this.viterbi_beam = beam>0;
+	}
+	
+	public void modifyPrune(double prune, int prune_check) {
+		// TODO Auto-generated method stub
+		this.prune = prune;
+		this.prune_check = prune_check;
+		if(prune>0&&sspace0==null) {
+			// the state spaces could be shared with other models
+			this.sspace0 = this.sspace;
+			this.sspace = this.sspace.clone();
+		}
+	}
+	
+	public void modifySquarem(boolean squarem) {
+		// TODO Auto-generated method stub
+		this.squarem = squarem;
+	}
+	
+	public void modifyAggregate(boolean aggregate) {
+		// TODO Auto-generated method stub
+		this.aggregate = aggregate;
+	}
+	
+	public void modifyDebug(boolean debug) {
+		// TODO Auto-generated method stub
+		this.debug = debug;
+	}
+	
+	public void modifyBlocks(int blocks) {
+		// TODO Auto-generated method stub
+		blocks = Math.max(1, Math.min(blocks, M/2));
+		if(blocks<2) return;
+		if(checkpoint || stored) {
+			myLogger.warn("parallel-in-time recursions need the forward "
+					+ "matrices on the heap, ignored.");
+			return;
+		}
+		this.blocks = blocks;
+		double mem = this.memory();
+		if(mem>memory_budget) {
+			this.blocks = 1;
+			myLogger.warn("parallel-in-time recursions need "+(long) (mem/1048576)+"MB, "
+					+ "over the budget of "+memory_budget/1048576+"MB, ignored.");
+			return;
+		}
+		// the blocks of the backward are run apart from the E-step
+		for(int i=0; i<N; i++) 
+			this.backward[i] = new FBUnit(true);
+	}
+	
+	public void modifyFastForward(boolean fast_forward) {
+		// TODO Auto-generated method stub
+		this.fast_forward = fast_forward;
+	}
+	
+	private boolean fastForwarded(final int i) {
+		// TODO Auto-generated method stub
+		// the runs are taken with the aggregated recursions, but 
+		// not while the posteriors for pruning are collected
+		return fast_forward && pmax==null && aggregated(i);
+	}
+	
+	private boolean aggregated(final int i) {
+		// TODO Auto-generated method stub
+		// the aggregated recursions need the full f1 state space
+		return aggregate && sspace[i].length==K-2;
+	}
 }
@@ -6,19 +6,30 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.distribution.BetaDistribution;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.Well19937c;
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import cz1.hmm.data.DataEntry;
 import cz1.math.Combination;
+import cz1.math.Permutation;
 import cz1.math.SaddlePointExpansion;
 import cz1.util.Constants;
 import cz1.util.Constants.Field;
@@ -30,6 +41,7 @@ public abstract class EmissionModel {
 	protected final static double mu_A_e = 10;
 	protected final static double mu_A_m = 0.1;
 	protected final static double mu_A_p = 1e-6; //precision
+	protected final static double mu_W = 0.05; // weight of the random initialisation in warm starts
 	
 	// at least 3 markers or 30% markers to keep a sample
 	// at least 30 f1 progeny to run the program
@@ -37,7 +49,9 @@ public abstract class EmissionModel {
 	protected final double min_mn = 3;
 	protected final int min_f1 = 30;
 	
-	protected static int iteration = 0;
+	protected int iteration = 0;
+	protected long seed; // seed of the random initialisation
+	protected RandomGenerator rg;
 	
 	protected Field field;
 	protected DataEntry de;
@@ -55,10 +69,10 @@ public abstract class EmissionModel {
 	protected double[] distance;
 	protected double[] weights;
 	
-	protected List<Integer[]> sspace; // state space for each sample
+	protected int[][] sspace; // state space for each sample
 	
 	protected StateUnit state;
-	protected ObUnit[][] obs;
+	protected ObStore obs;
 	protected EmissionUnit[] emission;
 	protected PathUnit[] pas;
 	
@@ -70,6 +84,9 @@ public abstract class EmissionModel {
 	
 	protected boolean runnable = true;
 	
+	protected int threads = 1; // #threads for sample-parallel recursions
+	protected ForkJoinPool pool = null;
+	
 	abstract double loglik();
 	abstract double loglik(int fromMIndex, int toMIndex);
 	abstract double findPath();
@@ -83,12 +100,28 @@ public abstract class EmissionModel {
 			Field field,
 			int ploidy,
 			String[] parents,
-			boolean logspace) {
+			boolean logspace,
+			long seed) {
+		this(de, seperation, reverse, field, ploidy, parents, logspace, seed, false);
+	}
+	
+	public EmissionModel(DataEntry[] de, 
+			double[] seperation, 
+			boolean[] reverse,
+			Field field,
+			int ploidy,
+			String[] parents,
+			boolean logspace,
+			long seed,
+			boolean compress) {
 		this.field = field;
 		this.de = this.catDE(de, seperation, reverse);
 		this.logspace = logspace;
 		this.H = ploidy;
 		this.parents = parents;
+		this.seed = seed;
+		this.rg = new Well19937c(seed);
+		if(compress) this.compress();
 		this.initialise();
 	}
 	
@@ -98,7 +131,7 @@ public abstract class EmissionModel {
 			Field field,
 			int ploidy,
 			String[] parents) {
-		this(de, seperation, reverse, field, ploidy, parents, true);
+		this(de, seperation, reverse, field, ploidy, parents, true, Constants.nextSeed());
 	}
 	
 	public EmissionModel() {
@@ -109,6 +142,7 @@ public abstract class EmissionModel {
 	protected String[] true_id;
 	protected int[] true_pos;
 	protected int[] Ms;
+	protected SnpRuns runs = null; // SNPs of each marker if compressed
 	
 	protected DataEntry catDE(DataEntry[] de, 
 			double[] seperation, 
@@ -144,6 +178,144 @@ public abstract class EmissionModel {
 		return de[0];
 	}
 
+	/***
+	 * adjacent SNPs of a contig with the same observations in every 
+	 * sample, e.g. the SNPs on one GBS tag, are collapsed into one 
+	 * marker. the SNPs of a marker share the emission probabilities and
+	 * the hidden state, so the emission of the marker is that of its 
+	 * first SNP to the power of the #SNPs. the model is run on the 
+	 * markers and the results are written for all SNPs.
+	 */
+	private void compress() {
+		// TODO Auto-generated method stub
+		final DataEntry de0 = this.de;
+		final int S = de0.modelLength();
+		final boolean[] end = new boolean[S]; // last SNP of a contig
+		for(int c : conjs) end[c] = true;
+		final List<Integer> first = new ArrayList<>();
+		long[] ob0 = observe(0), ob1;
+		first.add(0);
+		for(int s=1; s<S; s++) {
+			ob1 = observe(s);
+			if(end[s-1]||!Arrays.equals(ob0, ob1)) first.add(s);
+			ob0 = ob1;
+		}
+		final int M = first.size();
+		myLogger.info(S+" SNPs compressed into "+M+" markers.");
+		if(M==S) return;
+		
+		final int[] marker = new int[S], mult = new int[M];
+		for(int j=0, s=0; j<M; j++) {
+			final int e = j+1<M ? first.get(j+1) : S;
+			mult[j] = e-first.get(j);
+			for(; s<e; s++) marker[s] = j;
+		}
+		final double[] position = new double[M];
+		final List<String[]> allele = new ArrayList<>();
+		final List<List<int[]>> ad = de0.getAlleleDepth()==null ? null : new ArrayList<>();
+		final List<List<double[]>> gl = de0.getGenotypeLikelihood()==null ? null : new ArrayList<>();
+		final List<List<String[]>> gt = de0.getGenotype()==null ? null : new ArrayList<>();
+		final String[] true_id = new String[M];
+		final int[] true_pos = new int[M];
+		int s;
+		for(int j=0; j<M; j++) {
+			s = first.get(j);
+			position[j] = de0.getPosition()[s];
+			allele.add(de0.getAllele().get(s));
+			if(ad!=null) ad.add(de0.getAlleleDepth().get(s));
+			if(gl!=null) gl.add(de0.getGenotypeLikelihood().get(s));
+			if(gt!=null) gt.add(de0.getGenotype().get(s));
+			true_id[j] = this.true_id[s];
+			true_pos[j] = this.true_pos[s];
+		}
+		final int[] Ms = new int[this.Ms.length];
+		s = 0;
+		for(int c=0; c<Ms.length; c++) {
+			Ms[c] = marker[s+this.Ms[c]-1]-marker[s]+1;
+			s += this.Ms[c];
+		}
+		for(int c=0; c<conjs.size(); c++)
+			conjs.set(c, marker[conjs.get(c)]);
+		
+		this.runs = new SnpRuns(de0, this.true_id, this.true_pos, this.Ms, marker, mult);
+		this.de = new DataEntry(de0.getId(), position, allele, ad, gl, gt, 
+				Arrays.asList(de0.getSample()));
+		this.true_id = true_id;
+		this.true_pos = true_pos;
+		this.Ms = Ms;
+	}
+	
+	/***
+	 * depth of coverage and A-allele depth of each sample at SNP s
+	 */
+	private long[] observe(final int s) {
+		// TODO Auto-generated method stub
+		final int N = de.getSample().length;
+		final long[] ob = new long[N];
+		switch(this.field) {
+		case AD:
+			if(de.getAlleleDepth()==null) 
+				throw new RuntimeException("AD feild not available!!! Try GT (-G/--genotype) options.");
+			final List<int[]> ad = de.getAlleleDepth().get(s);
+			for(int i=0; i<N; i++) 
+				ob[i] = ((long) (ad.get(i)[0]+ad.get(i)[1])<<32)|ad.get(i)[0];
+			break;
+		case GT:
+			if(de.getGenotype()==null) 
+				throw new RuntimeException("GT field not available!!! Try AD (-D/--allele-depth) option.");
+			final List<String[]> gt = de.getGenotype().get(s);
+			final String[] a = de.getAllele().get(s);
+			int acnt, bcnt;
+			for(int i=0; i<N; i++) {
+				acnt = 0;
+				bcnt = 0;
+				for(String g : gt.get(i)) {
+					acnt += (g.equals(a[0]) ? 1 : 0);
+					bcnt += (g.equals(a[1]) ? 1 : 0);
+				}
+				ob[i] = ((long) (acnt+bcnt)<<32)|acnt;
+			}
+			break;
+		default:
+			throw new RuntimeException("!!!");
+		}
+		return ob;
+	}
+	
+	protected class SnpRuns { /** SNPs collapsed into each marker */
+		protected final DataEntry de; // all SNPs
+		protected final String[] true_id;
+		protected final int[] true_pos;
+		protected final int[] Ms; // #SNPs of each contig
+		protected final int[] marker; // marker of each SNP
+		protected final int[] mult; // #SNPs of each marker
+		
+		public SnpRuns(DataEntry de, String[] true_id, int[] true_pos, 
+				int[] Ms, int[] marker, int[] mult) {
+			this.de = de;
+			this.true_id = true_id;
+			this.true_pos = true_pos;
+			this.Ms = Ms;
+			this.marker = marker;
+			this.mult = mult;
+		}
+	}
+	
+	protected int snps() {
+		// TODO Auto-generated method stub
+		return runs==null ? M : runs.marker.length;
+	}
+	
+	protected int marker(final int s) {
+		// TODO Auto-generated method stub
+		return runs==null ? s : runs.marker[s];
+	}
+	
+	protected DataEntry snpDE() {
+		// TODO Auto-generated method stub
+		return runs==null ? de : runs.de;
+	}
+	
 	protected void initialise() {
 		// TODO Auto-generated method stub
 		this.samples = de.getSample();
@@ -178,27 +350,26 @@ public abstract class EmissionModel {
 		this.distance = new double[this.M-1];
 		for(int i=0; i<distance.length; i++)
 			distance[i] = Math.abs(position[i+1]-position[i]);
-		this.sspace = new ArrayList<>(N);
-		for(int i=0; i<N; i++) sspace.add(null);
-		if(parents_i[0]!=-1) sspace.set(parents_i[0], new Integer[]{0});
-		if(parents_i[1]!=-1) sspace.set(parents_i[1], new Integer[]{1});
-		Integer[] progeny_s = new Integer[K-2];
+		this.sspace = new int[N][];
+		if(parents_i[0]!=-1) sspace[parents_i[0]] = new int[]{0};
+		if(parents_i[1]!=-1) sspace[parents_i[1]] = new int[]{1};
+		int[] progeny_s = new int[K-2];
 		for(int i=0; i<K-2; i++) progeny_s[i] = i+2;
-		for(int i : progeny_i) sspace.set(i, progeny_s);
+		for(int i : progeny_i) sspace[i] = progeny_s;
 		this.weights = this.field==Field.GT ? new double[] {Nf1/2.0, 1.0} : new double[]{1.0, 1.0};
 		Integer[] hs = new Integer[H];
 		for(int i=0; i<H; i++) hs[i] = i;
 		this.comb_hs = new ArrayList<List<List<Integer>>>();
 		for(int i=0; i<=H; i++) comb_hs.add(Combination.combination(hs, i));
-		this.makeObUnits();
+		this.makeObStore();
 		this.makePathUnits();
 		this.makeEmissionUnits();
 	}
  
-	private void makeObUnits() {
+	private void makeObStore() {
 		// TODO Auto-generated method stub
-		this.obs = new ObUnit[N][M];
-		int miss_cnt = 0, miss_f1 = 0, pid;
+		final int[] pid = new int[N], cov = new int[N*M], aa = new int[N*M];
+		int miss_cnt = 0, miss_f1 = 0;
 		double miss_max = M-Math.max(min_mn, M*min_mf);
 		switch(this.field) {
 		case AD:
@@ -206,16 +377,16 @@ public abstract class EmissionModel {
 			if(ad==null) throw new RuntimeException("AD feild not available!!! Try GT (-G/--genotype) options.");
 			int[] dp;
 			for(int i=0; i<N; i++) {
-				pid = i==parents_i[0] ? 0 : (i==parents_i[1] ? 1 : 2);
+				pid[i] = i==parents_i[0] ? 0 : (i==parents_i[1] ? 1 : 2);
 				miss_cnt = 0;
 				for(int j=0; j<M; j++) {
 					dp = ad.get(j).get(i);
-					obs[i][j] = new ObUnit(pid, dp[0]+dp[1], dp[0], K);
+					cov[i*M+j] = dp[0]+dp[1];
+					aa[i*M+j] = dp[0];
 					if(dp[0]+dp[1]==0) ++miss_cnt;
 				}
 				if(miss_cnt>miss_max) {
 					fi1ter[i] = true;
-					obs[i] = null;
 					if(i!=parents_i[0]&&i!=parents_i[1]) ++miss_f1;
 				}
 			}
@@ -227,7 +398,7 @@ public abstract class EmissionModel {
 			int acnt, bcnt;
 			String[] a, g;
 			for(int i=0; i<N; i++) {
-				pid = i==parents_i[0] ? 0 : (i==parents_i[1] ? 1 : 2);
+				pid[i] = i==parents_i[0] ? 0 : (i==parents_i[1] ? 1 : 2);
 				miss_cnt = 0;
 				for(int j=0; j<M; j++) {
 					a = allele.get(j);
@@ -238,12 +409,12 @@ public abstract class EmissionModel {
 						acnt += (g[k].equals(a[0]) ? 1 : 0);
 						bcnt += (g[k].equals(a[1]) ? 1 : 0);
 					}
-					obs[i][j] = new ObUnit(pid, acnt+bcnt, acnt, K);
+					cov[i*M+j] = acnt+bcnt;
+					aa[i*M+j] = acnt;
 					if(acnt+bcnt<H) ++miss_cnt;
 				}
 				if(miss_cnt>miss_max) {
 					fi1ter[i] = true;
-					obs[i] = null;
 					if(i!=parents_i[0]&&i!=parents_i[1]) ++miss_f1;
 				}
 			}
@@ -252,6 +423,8 @@ public abstract class EmissionModel {
 			throw new RuntimeException("!!!");
 		}
 		
+		this.obs = new ObStore(pid, cov, aa);
+		
 		int f1 = Nf1-miss_f1;
 		if(f1<min_f1) {
 			runnable = false;
@@ -262,10 +435,247 @@ public abstract class EmissionModel {
 		}
 	}
 	
+	/***
+	 * a new random initialisation of the model, the data, state 
+	 * spaces and observations are shared with model
+	 */
+	protected void restart(EmissionModel model, long seed) {
+		// TODO Auto-generated method stub
+		this.field = model.field;
+		this.de = model.de;
+		this.M = model.M;
+		this.N = model.N;
+		this.H = model.H;
+		this.K = model.K;
+		this.Nf1 = model.Nf1;
+		this.state = model.state;
+		this.samples = model.samples;
+		this.parents = model.parents;
+		this.fi1ter = model.fi1ter;
+		this.parents_i = model.parents_i;
+		this.progeny_i = model.progeny_i;
+		this.weights = model.weights;
+		this.distance = model.distance;
+		this.sspace = model.sspace;
+		this.comb_hs = model.comb_hs;
+		this.logspace = model.logspace;
+		this.obs = new ObStore(model.obs);
+		this.conjs.addAll(model.conjs);
+		this.true_id = model.true_id;
+		this.true_pos = model.true_pos;
+		this.chrs = model.chrs;
+		this.chrs_rev = model.chrs_rev;
+		this.Ms = model.Ms;
+		this.runs = model.runs;
+		this.runnable = model.runnable;
+		this.threads = model.threads;
+		this.pool = model.pool;
+		this.seed = seed;
+		this.rg = new Well19937c(seed);
+		this.makePathUnits();
+		this.makeEmissionUnits();
+	}
+	
+	/***
+	 * warm start from trained models. markers are matched by the 
+	 * contig and the position on the contig, so the scaffolds could be
+	 * in different order or orientation. the emission probabilities of
+	 * a matched marker are mixed with the random initialisation by 
+	 * weight mu_W to add a little jitter.
+	 * 
+	 * a superscaffold could be initialised from the models of its 
+	 * member contigs. the founder haplotypes of each parent are labelled 
+	 * arbitrarily by each model, so the labels of a model are permuted 
+	 * to agree with those already loaded. the permutation is chosen to 
+	 * maximise the number of founder haplotypes inherited by the progeny
+	 * in common at the markers loaded already that are in the model too,
+	 * e.g. the overlap of two windows of a superscaffold, or else at the
+	 * nearest pair of markers across the models.
+	 * 
+	 * @return #markers matched
+	 */
+	public int warmStart(ModelReader... models) {
+		// TODO Auto-generated method stub
+		final int[] owner = new int[M]; // model a marker is loaded from
+		final int[] column = new int[M]; // index of the marker in the model
+		Arrays.fill(owner, -1);
+		final List<Map<String, char[][]>> haps = new ArrayList<>();
+		final int[][] perms = new int[models.length][];
+		final double[] emiss = new double[2*H];
+		String[] a, s;
+		Integer j;
+		boolean flip;
+		int n = 0;
+		for(int z=0; z<models.length; z++) {
+			final ModelReader model = models[z];
+			if(model.getPloidy()!=H) 
+				throw new RuntimeException("Ploidy of the warm start model does not match!!!");
+			final List<String[]> snps = model.getSnps();
+			final Map<String, Integer> index = warmIndex(snps);
+			final boolean[] flips = new boolean[M];
+			final List<Integer> matched = new ArrayList<>();
+			final List<int[]> shared = new ArrayList<>(); // loaded already, {marker, index in the model}
+			for(int i=0; i<M; i++) {
+				j = index.get(true_id[i]+"_"+true_pos[i]);
+				if(j==null) continue;
+				a = de.getAllele().get(i);
+				s = snps.get(j);
+				if(a[0].equals(s[5])&&a[1].equals(s[6])) 
+					flip = false;
+				else if(a[0].equals(s[6])&&a[1].equals(s[5]))
+					flip = true;
+				else continue;
+				if(owner[i]!=-1) {
+					shared.add(new int[]{i, j});
+					continue;
+				}
+				column[i] = j;
+				flips[i] = flip;
+				matched.add(i);
+			}
+			if(models.length>1) {
+				final int[] position = new int[snps.size()];
+				for(int i=0; i<position.length; i++) position[i] = i;
+				haps.add(model.getHaplotypeByPosition(position, H));
+			}
+			perms[z] = n==0||matched.isEmpty() ? warmIdentity() : 
+				warmAlign(z, matched, shared, owner, column, haps, perms);
+			final double[][] emissA = model.getEmissionProbs(H);
+			for(int i : matched) {
+				j = column[i];
+				for(int k=0; k<emiss.length; k++) 
+					emiss[perms[z][k]] = (1-mu_W)*(flips[i] ? 1-emissA[j][k] : emissA[j][k])+
+						mu_W*emission[i].emiss[perms[z][k]];
+				emission[i].update(emiss);
+				owner[i] = z;
+				++n;
+			}
+		}
+		return n;
+	}
+	
+	private int[] warmIdentity() {
+		// TODO Auto-generated method stub
+		final int[] perm = new int[2*H];
+		for(int k=0; k<perm.length; k++) perm[k] = k;
+		return perm;
+	}
+	
+	private int[] warmAlign(int z, List<Integer> matched, List<int[]> shared, 
+			int[] owner, int[] column, List<Map<String, char[][]>> haps, int[][] perms) {
+		// TODO Auto-generated method stub
+		// count[x][y]: #progeny with haplotype x of model z
+		// and haplotype y loaded already
+		final double[][] count = new double[2*H][2*H];
+		if(!shared.isEmpty()) {
+			for(int[] s : shared)
+				warmCount(count, haps.get(owner[s[0]]), perms[owner[s[0]]], 
+						column[s[0]], haps.get(z), s[1]);
+		} else {
+			// the nearest pair of markers, one loaded and one from model z
+			int d = Integer.MAX_VALUE, a = -1, b = -1;
+			for(int i : matched) {
+				for(int k=1; k<d && (i-k>=0 || i+k<M); k++) {
+					if(i-k>=0&&owner[i-k]!=-1) {
+						d = k; a = i-k; b = i;
+					} else if(i+k<M&&owner[i+k]!=-1) {
+						d = k; a = i+k; b = i;
+					}
+				}
+				if(d==1) break;
+			}
+			warmCount(count, haps.get(owner[a]), perms[owner[a]], 
+					column[a], haps.get(z), column[b]);
+		}
+		
+		// founder haplotypes are permuted within each parent
+		final int[] perm = new int[2*H];
+		final List<List<Integer>> ps = Permutation.permutation(H);
+		for(int p=0; p<2; p++) {
+			final int o = p*H;
+			double c, c_max = -1;
+			for(List<Integer> pi : ps) {
+				c = 0;
+				for(int k=0; k<H; k++) c += count[o+k][o+pi.get(k)];
+				if(c>c_max) {
+					c_max = c;
+					for(int k=0; k<H; k++) perm[o+k] = o+pi.get(k);
+				}
+			}
+		}
+		return perm;
+	}
+	
+	private void warmCount(double[][] count, Map<String, char[][]> hapA, int[] permA, 
+			int a, Map<String, char[][]> hapB, int b) {
+		// TODO Auto-generated method stub
+		// haplotypes at marker a of a model loaded already 
+		// against those at marker b of the model to align
+		final Set<String> skip = new HashSet<>(Arrays.asList(parents));
+		for(String sample : hapB.keySet()) {
+			if(skip.contains(sample)||!hapA.containsKey(sample)) continue;
+			final char[][] ha = hapA.get(sample), hb = hapB.get(sample);
+			for(int p=0; p<H; p++) {
+				if(hb[p][b]=='*') continue;
+				final int x = warmLabel(hb[p][b]);
+				for(int q=0; q<H; q++) {
+					if(ha[q][a]=='*') continue;
+					count[x][permA[warmLabel(ha[q][a])]] += 1;
+				}
+			}
+		}
+	}
+	
+	private int warmLabel(char h) {
+		// TODO Auto-generated method stub
+		// inverse of the hidden state labels in StateUnit
+		return h>='a' ? h-'a'+10 : h-'1';
+	}
+	
+	protected Map<String, Integer> warmIndex(List<String[]> snps) {
+		// TODO Auto-generated method stub
+		// contig_position to the index of the marker
+		final Map<String, Integer> index = new HashMap<>();
+		for(int i=0; i<snps.size(); i++) 
+			index.put(snps.get(i)[2]+"_"+snps.get(i)[3], i);
+		return index;
+	}
+	
 	public boolean runnable() {
 		// TODO Auto-generated method stub
 		return this.runnable;
 	}
+	
+	public void setThreads(int threads) {
+		// TODO Auto-generated method stub
+		this.shutdown();
+		this.threads = Math.max(1, threads);
+		if(this.threads>1) this.pool = new ForkJoinPool(this.threads);
+	}
+	
+	public void shutdown() {
+		// TODO Auto-generated method stub
+		if(this.pool!=null) {
+			this.pool.shutdown();
+			this.pool = null;
+		}
+	}
+	
+	protected void parallel(final int n, final IntConsumer task) {
+		// TODO Auto-generated method stub
+		// runs task(0), task(1), ..., task(n-1)
+		// on the work-stealing pool if available
+		if(pool==null||n<2) {
+			for(int i=0; i<n; i++) task.accept(i);
+			return;
+		}
+		try {
+			pool.submit(() -> IntStream.range(0, n).parallel().forEach(task)).get();
+		} catch (InterruptedException | ExecutionException e) {
+			// TODO Auto-generated catch block
+			throw new RuntimeException(e.getCause()==null?e:e.getCause());
+		}
+	}
 
 	private void makeEmissionUnits() {
 		// TODO Auto-generated method stub
@@ -303,11 +713,8 @@ public abstract class EmissionModel {
 		// TODO Auto-generated method stub
 		if(logspace==this.logspace)
 			return;
-		for(int i=0; i<N; i++) {
-			if(fi1ter[i]) continue;
-			for(int j=0; j<M; j++) 
-				obs[i][j].switchNumericSpace();
-		}
+		for(int j=0; j<M; j++) 
+			obs.switchNumericSpace(j);
 		this.logspace = logspace;
 	}
 	
@@ -349,26 +756,13 @@ public abstract class EmissionModel {
 
 	protected void refresh() {
 		// refresh emission probabilities for obs
+		// only the shared rows of each marker are updated
 		switch(this.field) {
 		case AD:
-			double[] emissc1;
-			for(int i=0; i<M; i++) {
-				emissc1 = ((EmissionAD) emission[i]).emissc;
-				for(int j=0; j<N; j++) {
-					if(fi1ter[j]) continue;
-					obs[j][i].updateEmiss(emissc1);
-				}
-			}
+			parallel(M, i -> obs.updateEmiss(i, ((EmissionAD) emission[i]).emissc));
 			break;
 		case GT:
-			double[][] emissc2;
-			for(int i=0; i<M; i++) {
-				emissc2 = ((EmissionGT) emission[i]).emissc;
-				for(int j=0; j<N; j++) {
-					if(fi1ter[j]) continue;
-					obs[j][i].updateEmiss(emissc2);
-				}
-			}
+			parallel(M, i -> obs.updateEmiss(i, ((EmissionGT) emission[i]).emissc));
 			break;
 		default:
 			throw new RuntimeException("!!!");
@@ -404,67 +798,166 @@ public abstract class EmissionModel {
 		Arrays.fill(array, 0);
 	}
 	
+	protected static void clear(int[] array) {
+		// TODO Auto-generated method stub
+		Arrays.fill(array, 0);
+	}
+	
 	public int iteration() {
 		// TODO Auto-generated method stub
 		return iteration;
 	}
 	
-	protected class ObUnit {
-		private final int pid;  // pedigree indexer: 0, 1 - two parents; 2 - f1
-		private final int cov;	// depth of coverage
-		private final int aa;	// A-allele depth
-		protected final double[] emiss; // place holder for emission probs
-		protected final double[] logscale;
+	protected class ObStore { /** observations of all samples and markers */
+		// samples of a marker with the same depth of coverage and A-allele
+		// depth share one row of emission probabilities 
+		private final int[] pid;  // pedigree indexer: 0, 1 - two parents; 2 - f1
+		private final int[] row;  // row of sample i at marker j, i*M+j; -1 if filtered
+		private final int[][] cov; // depth of coverage of each row
+		private final int[][] aa;  // A-allele depth of each row
+		private final double[][][] emiss;
+		private final double[][][] logscale;
 		
-		public ObUnit(int pid, int cov, int aa, int k) {
+		public ObStore(int[] pid, int[] cov, int[] aa) {
 			// TODO Auto-generated constructor stub
 			this.pid = pid;
-			this.cov = cov;
-			this.aa = aa;
-			this.emiss = new double[k];
-			this.logscale = new double[3];
+			this.row = new int[N*M];
+			this.cov = new int[M][];
+			this.aa = new int[M][];
+			this.emiss = new double[M][][];
+			this.logscale = new double[M][][];
+			
+			final Map<Long, Integer> rows = new HashMap<>();
+			int o, r;
+			for(int j=0; j<M; j++) {
+				rows.clear();
+				for(int i=0; i<N; i++) {
+					o = i*M+j;
+					if(fi1ter[i]) {
+						row[o] = -1;
+						continue;
+					}
+					r = rows.computeIfAbsent(((long) cov[o]<<32)|aa[o], 
+							z -> rows.size());
+					row[o] = r;
+				}
+				this.cov[j] = new int[rows.size()];
+				this.aa[j] = new int[rows.size()];
+				for(int i=0; i<N; i++) {
+					o = i*M+j;
+					if(fi1ter[i]) continue;
+					this.cov[j][row[o]] = cov[o];
+					this.aa[j][row[o]] = aa[o];
+				}
+				this.emiss[j] = new double[rows.size()][K];
+				this.logscale[j] = new double[rows.size()][3];
+			}
 		}
-
-		public double getLogScale() {
-			// TODO Auto-generated method stub
-			return logscale[pid];
+		
+		public ObStore(ObStore obs) {
+			// TODO Auto-generated constructor stub
+			// same observations with rows of its own
+			this.pid = obs.pid;
+			this.row = obs.row;
+			this.cov = obs.cov;
+			this.aa = obs.aa;
+			this.emiss = new double[M][][];
+			this.logscale = new double[M][][];
+			for(int j=0; j<M; j++) {
+				this.emiss[j] = new double[cov[j].length][K];
+				this.logscale[j] = new double[cov[j].length][3];
+			}
 		}
-
-		public void updateEmiss(double[] emissA) {
-			Arrays.fill(this.logscale, 0);
-			if(cov==0) {
-				Arrays.fill(emiss, Math.log(1.0/K));
-			} else {
-				for(int i=0; i<emiss.length; i++)
-					emiss[i] = SaddlePointExpansion.logBinomialProbability(aa, cov, emissA[i]);
+		
+		public double[] emiss(int i, int j) {
+			return emiss[j][row[i*M+j]];
+		}
+		
+		public double logscale(int i, int j) {
+			return logscale[j][row[i*M+j]][pid[i]];
+		}
+		
+		public int cov(int i, int j) {
+			return cov[j][row[i*M+j]];
+		}
+		
+		public int aa(int i, int j) {
+			return aa[j][row[i*M+j]];
+		}
+		
+		public void updateEmiss(int j, double[] emissA) {
+			// emissA has only a few distinct values, the
+			// binomial probabilities are calculated once each
+			final Map<Double, Integer> u = new HashMap<>();
+			final int[] ui = new int[K];
+			for(int i=0; i<K; i++) {
+				Integer z = u.get(emissA[i]);
+				if(z==null) {
+					z = u.size();
+					u.put(emissA[i], z);
+				}
+				ui[i] = z;
 			}
+			final double[] uv = new double[u.size()];
+			for(Map.Entry<Double, Integer> e : u.entrySet()) 
+				uv[e.getValue()] = e.getKey();
+			final double[] lp = new double[uv.length];
 			
-			if(!logspace) switchToNormalSpace();
+			final int[] cov = this.cov[j], aa = this.aa[j];
+			final int w = runs==null ? 1 : runs.mult[j];
+			double[] emiss_r;
+			for(int r=0; r<cov.length; r++) {
+				Arrays.fill(logscale[j][r], 0);
+				emiss_r = emiss[j][r];
+				if(cov[r]==0) {
+					Arrays.fill(emiss_r, w*Math.log(1.0/K));
+				} else {
+					for(int i=0; i<lp.length; i++)
+						lp[i] = w*SaddlePointExpansion.logBinomialProbability(aa[r], cov[r], uv[i]);
+					for(int i=0; i<K; i++)
+						emiss_r[i] = lp[ui[i]];
+				}
+				if(!logspace) switchToNormalSpace(j, r);
+			}
 		}
 		
-		public void updateEmiss(double[][] emissA) {
-			Arrays.fill(this.logscale, 0);
-			if(cov==0) {
-				Arrays.fill(emiss, 1.0/K);
-			} else {
-				for(int i=0; i<emiss.length; i++)
-					emiss[i] =  emissA[i][aa];
+		public void updateEmiss(int j, double[][] emissA) {
+			final int[] cov = this.cov[j], aa = this.aa[j];
+			final int w = runs==null ? 1 : runs.mult[j];
+			double[] emiss_r;
+			for(int r=0; r<cov.length; r++) {
+				Arrays.fill(logscale[j][r], 0);
+				emiss_r = emiss[j][r];
+				if(cov[r]==0) {
+					Arrays.fill(emiss_r, 1.0/K);
+				} else {
+					for(int i=0; i<K; i++)
+						emiss_r[i] =  emissA[i][aa[r]];
+				}
+				if(w>1) {
+					// the power of a collapsed marker in log space 
+					// so that it is scaled as in updateEmiss(j, emissA)
+					for(int i=0; i<K; i++) emiss_r[i] = w*Math.log(emiss_r[i]);
+					if(!logspace) switchToNormalSpace(j, r);
+				} else if(logspace) switchToLogSpace(j, r);
 			}
-			
-			if(logspace) switchToLogSpace();	
 		}
 
-		public void switchNumericSpace() {
+		public void switchNumericSpace(int j) {
 			// TODO Auto-generated method stub
-			if(logspace)
-				switchToNormalSpace();
-			else
-				switchToLogSpace();
+			for(int r=0; r<emiss[j].length; r++) {
+				if(logspace)
+					switchToNormalSpace(j, r);
+				else
+					switchToLogSpace(j, r);
+			}
 		}
 
-		private void switchToNormalSpace() {
+		private void switchToNormalSpace(int j, int r) {
 			// TODO Auto-generated method stub
 			// if not in log space
+			final double[] emiss = this.emiss[j][r], 
+					logscale = this.logscale[j][r];
 			logscale[0] = emiss[0];
 			emiss[0] = 1.0;
 			logscale[1] = emiss[1];
@@ -475,8 +968,10 @@ public abstract class EmissionModel {
 			}
 		}
 
-		private void switchToLogSpace() {
+		private void switchToLogSpace(int j, int r) {
 			// TODO Auto-generated method stub
+			final double[] emiss = this.emiss[j][r], 
+					logscale = this.logscale[j][r];
 			emiss[0] = Math.log(emiss[0])+logscale[0];
 			emiss[1] = Math.log(emiss[1])+logscale[1];
 			for(int i=2; i<K; i++) {
@@ -484,18 +979,6 @@ public abstract class EmissionModel {
 			}
 			Arrays.fill(logscale, 0);
 		}
-
-		public int getCov() {
-			return this.cov;
-		}
-
-		public int getAa() {
-			return this.aa;
-		}
-
-		public double[] getEmiss() {
-			return this.emiss;
-		}
 	}
 
 	protected class StateUnit {
@@ -602,7 +1085,7 @@ public abstract class EmissionModel {
 		}
 		
 		@Override
-		public void addCount(int s, int a, int b, double cnt) {
+		public void addCount(int s, int a, int b, double cnt, double[][] count) {
 			// TODO Auto-generated method stub
 			if(a+b==0) return;
 			int[] hs = state.hsc[s];
@@ -704,7 +1187,7 @@ public abstract class EmissionModel {
 		}
 		
 		@Override
-		public void addCount(int s, int a, int b, double cnt) {
+		public void addCount(int s, int a, int b, double cnt, double[][] count) {
 			// TODO Auto-generated method stub
 			if(a+b==0) return;
 			int[] hs = state.hsc[s];
@@ -735,7 +1218,7 @@ public abstract class EmissionModel {
 
 		protected void prior() {
 			// TODO Auto-generated method stub
-			BetaDistribution beta = new BetaDistribution(Constants.rg, 
+			BetaDistribution beta = new BetaDistribution(rg, 
 					(1-bfrac)*mu_A_e, bfrac*mu_A_e);
 			for(int i=0; i<emiss.length; i++) {
 				emiss[i] = beta.sample();
@@ -744,7 +1227,17 @@ public abstract class EmissionModel {
 			}
 		}
 		
-		abstract void addCount(int s, int acnt, int bcnt, double count);
+		protected void addCount(int s, int acnt, int bcnt, double count) {
+			this.addCount(s, acnt, bcnt, count, this.count);
+		}
+		
+		abstract void addCount(int s, int acnt, int bcnt, double cnt, double[][] count);
+		
+		protected void addCount(double[][] cnts) {
+			for(int i=0; i<count.length; i++) 
+				for(int j=0; j<count[i].length; j++)
+					count[i][j] += cnts[i][j];
+		}
 		
 		protected void update() {
 			// TODO Auto-generated method stub
@@ -756,6 +1249,15 @@ public abstract class EmissionModel {
 			}
 			this.updatec();
 		}
+		
+		protected void update(double[] emiss) {
+			// TODO Auto-generated method stub
+			for(int i=0; i<this.emiss.length; i++) {
+				this.emiss[i] = Math.max(emiss[i], mu_A_p);
+				this.emiss[i] = Math.min(this.emiss[i], 1-mu_A_p);
+			}
+			this.updatec();
+		}
 
 		abstract protected void updatec();
 		
@@ -783,17 +1285,59 @@ public abstract class EmissionModel {
 		}
 	}
 	
+	/***
+	 * log-likelihoods of the member contigs, each as a model of its own
+	 */
+	protected double[] modelLoglik() {
+		// TODO Auto-generated method stub
+		double[] model_ll = new double[Ms.length];
+		int k = 0;
+		for(int i=0; i<Ms.length; i++) {
+			model_ll[i] = loglik(k, k+Ms[i]);
+			k += Ms[i];
+		}
+		return model_ll;
+	}
+	
 	protected class PathUnit {
-		protected String[] path_str;
 		protected int[] path;
 		
 		public PathUnit() {
 			// TODO Auto-generated constructor stub
-			this.path_str = new String[M];
 			this.path = new int[M];
 		}
 	}
 	
+	/***
+	 * founder haplotypes in the H slots along a decoded path, flat
+	 * M*H. the founder haplotypes of a state shared with the next 
+	 * marker are kept in the same slots and the others fill the free 
+	 * slots in order. slot is a workspace of 2*H filled with -1.
+	 */
+	protected void align(final int[] path, final int[] hap, final int[] slot) {
+		// TODO Auto-generated method stub
+		final int[][] hsc = state.getHsc();
+		System.arraycopy(hsc[path[M-1]], 0, hap, (M-1)*H, H);
+		int[] h;
+		int off0, off1, f;
+		for(int i=M-2; i>=0; i--) {
+			off0 = i*H;
+			off1 = off0+H;
+			h = hsc[path[i]];
+			for(int k=0; k<H; k++) slot[hap[off1+k]] = k;
+			Arrays.fill(hap, off0, off1, -1);
+			for(int k=0; k<H; k++) 
+				if(slot[h[k]]!=-1) hap[off0+slot[h[k]]] = h[k];
+			f = off0;
+			for(int k=0; k<H; k++) {
+				if(slot[h[k]]!=-1) continue;
+				while(hap[f]!=-1) ++f;
+				hap[f] = h[k];
+			}
+			for(int k=0; k<H; k++) slot[hap[off1+k]] = -1;
+		}
+	}
+	
 	protected class ModelWriter {
 		protected ZipOutputStream out = null;
 		
@@ -810,11 +1354,18 @@ public abstract class EmissionModel {
 			try {
 				out.putNextEntry(new ZipEntry("haplotype.txt"));
 				out.write((""+loglik()+"\n").getBytes());
-				out.write((""+M+"\n").getBytes());
+				final int S = snps();
+				out.write((""+S+"\n").getBytes());
 				StringBuilder miss_str = new StringBuilder();
-				for(int s=0; s<M; s++) miss_str.append("*");
+				for(int s=0; s<S; s++) miss_str.append("*");
 				miss_str.append("\n");
 				byte[] miss_byt = miss_str.toString().getBytes();
+				// one workspace for all samples
+				final char[] hs = state.getHs();
+				final int[] hap = new int[M*H], slot = new int[2*H];
+				final byte[] hap_byt = new byte[S+1];
+				hap_byt[S] = '\n';
+				Arrays.fill(slot, -1);
 				for(int i=0; i<N; i++) {
 					if(pas[i]==null) {
 						for(int k=0; k<H; k++) {
@@ -822,15 +1373,12 @@ public abstract class EmissionModel {
 							out.write(miss_byt);
 						}
 					} else {
-						String[] path = pas[i].path_str;
-						List<String[]> path_s = new ArrayList<String[]>();
-						for(int k=0; k<path.length; k++)
-							path_s.add(path[k].split("_"));
+						align(pas[i].path, hap, slot);
 						for(int k=0; k<H; k++) {
 							out.write(("# id "+samples[i]+":"+(k+1)+"\t\t\t").getBytes());
-							for(int s=0; s<path_s.size(); s++)
-								out.write(path_s.get(s)[k].getBytes());
-							out.write("\n".getBytes());
+							for(int s=0; s<S; s++)
+								hap_byt[s] = (byte) hs[hap[marker(s)*H+k]];
+							out.write(hap_byt);
 						}
 					}
 				}
@@ -852,25 +1400,28 @@ public abstract class EmissionModel {
 				os.append("\n");
 				out.write(os.toString().getBytes());
 				
-				List<String[]> allele = de.getAllele();
-				double[] position = de.getPosition();
-				String[] markers_id = de.getMarker();
-				String id = de.getId();
+				final DataEntry snp = snpDE();
+				List<String[]> allele = snp.getAllele();
+				double[] position = snp.getPosition();
+				String[] markers_id = snp.getMarker();
+				String id = snp.getId();
 				int[] states;
 				double[] emiss;
-				for(int i=0; i<M; i++) {
+				int i;
+				for(int s=0; s<position.length; s++) {
 					os.setLength(0);
 					os.append(id);
 					os.append("\t");
-					os.append((int) position[i]);
+					os.append((int) position[s]);
 					os.append("\t");
-					os.append(markers_id[i]);
+					os.append(markers_id[s]);
 					os.append("\t");
-					os.append(allele.get(i)[0]);
+					os.append(allele.get(s)[0]);
 					os.append("\t");
-					os.append(allele.get(i)[1]);
+					os.append(allele.get(s)[1]);
 					os.append("\t.\t.\t.\tGT");
 					
+					i = marker(s);
 					emiss = emission[i].getEmiss();
 					for(int j=0; j<N; j++) {
 						int dosa;
@@ -907,25 +1458,28 @@ public abstract class EmissionModel {
 				os.append("\n");
 				out.write(os.toString().getBytes());
 				
-				List<String[]> allele = de.getAllele();
-				double[] position = de.getPosition();
-				String[] markers_id = de.getMarker();
-				String id = de.getId();
+				final DataEntry snp = snpDE();
+				List<String[]> allele = snp.getAllele();
+				double[] position = snp.getPosition();
+				String[] markers_id = snp.getMarker();
+				String id = snp.getId();
 				int[] states;
 				double[] emiss;
-				for(int i=0; i<M; i++) {
+				int i;
+				for(int s=0; s<position.length; s++) {
 					os.setLength(0);
 					os.append(id);
 					os.append("\t");
-					os.append((int) position[i]);
+					os.append((int) position[s]);
 					os.append("\t");
-					os.append(markers_id[i]);
+					os.append(markers_id[s]);
 					os.append("\t");
-					os.append(allele.get(i)[0]);
+					os.append(allele.get(s)[0]);
 					os.append("\t");
-					os.append(allele.get(i)[1]);
+					os.append(allele.get(s)[1]);
 					os.append("\t.\t.\t.\tGT");
 					
+					i = marker(s);
 					emiss = emission[i].getEmiss();
 					for(int j=0; j<N; j++) {
 						os.append("\t");
@@ -956,10 +1510,11 @@ public abstract class EmissionModel {
 		public void writeEmissionModel() {
 			try {
 				out.putNextEntry(new ZipEntry("emission.txt"));
-				for(int i=0; i<M; i++) {
-					double[] emiss = emission[i].getEmiss();
-					String[] allele = de.getAllele().get(i);
-					out.write((de.getId()+"_"+de.getPosition()[i]+"\t\t\t").getBytes());
+				final DataEntry snp = snpDE();
+				for(int s=0; s<snp.modelLength(); s++) {
+					double[] emiss = emission[marker(s)].getEmiss();
+					String[] allele = snp.getAllele().get(s);
+					out.write((snp.getId()+"_"+snp.getPosition()[s]+"\t\t\t").getBytes());
 					for(int j=0; j<emiss.length; j++) {
 						out.write((state.getHs()[j]+"-> {").getBytes());
 						out.write((allele[0]+","+emiss[j]+";").getBytes());
@@ -979,10 +1534,13 @@ public abstract class EmissionModel {
 				out.putNextEntry(new ZipEntry("snp.txt"));
 
 				StringBuilder os = new StringBuilder();
-				List<String[]> allele = de.getAllele();
-				double[] position = de.getPosition();
-				String[] markers_id = de.getMarker();
-				String id = de.getId();
+				final DataEntry snp = snpDE();
+				final String[] true_id = runs==null ? EmissionModel.this.true_id : runs.true_id;
+				final int[] true_pos = runs==null ? EmissionModel.this.true_pos : runs.true_pos;
+				List<String[]> allele = snp.getAllele();
+				double[] position = snp.getPosition();
+				String[] markers_id = snp.getMarker();
+				String id = snp.getId();
 				for(int i=0; i<position.length; i++) {
 					os.setLength(0);
 					os.append(id);
@@ -1010,7 +1568,7 @@ public abstract class EmissionModel {
 		public void writeRunInfo() {
 			try {
 				out.putNextEntry(new ZipEntry("runinfo.txt"));
-				out.write(("##marker: "+M+"\n").getBytes());
+				out.write(("##marker: "+snps()+"\n").getBytes());
 				out.write(("##sample: "+N+"\n").getBytes());
 				out.write(("##ploidy: "+H+"\n").getBytes());
 				out.write((("##parents: "+(parents[0]==null?"":parents[0])+
@@ -1020,15 +1578,9 @@ public abstract class EmissionModel {
 				out.write(("\n").getBytes());
 				out.write(("##chrs: "+Utils.paste(chrs, ",")+"\n").getBytes());
 				out.write(("##chrs_rev: "+Utils.paste(chrs_rev, ",")+"\n").getBytes());
-				out.write(("##model_len: "+Utils.paste(Ms, ",")+"\n").getBytes());
-				double[] model_ll = new double[Ms.length];
-				int k = 0;
-				for(int i=0; i<Ms.length; i++) {
-					model_ll[i] = loglik(k, k+Ms[i]);
-					k += Ms[i];
-				}
-				out.write(("##model_ll: "+Utils.paste(model_ll, ",")+"\n").getBytes());
-				out.write(("##seed: "+Constants.seed+"\n").getBytes());
+				out.write(("##model_len: "+Utils.paste(runs==null ? Ms : runs.Ms, ",")+"\n").getBytes());
+				out.write(("##model_ll: "+Utils.paste(modelLoglik(), ",")+"\n").getBytes());
+				out.write(("##seed: "+seed+"\n").getBytes());
 				out.write(("##iteration: "+iteration+"\n").getBytes());
 				out.write(("##loglik: "+loglik()+"\n").getBytes());
 			} catch (IOException e) {
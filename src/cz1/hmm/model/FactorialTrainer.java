@@ -0,0 +1,510 @@
+package cz1.hmm.model;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.stat.StatUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/***
+ * factorial HMM for the F1 progeny
+ *
+ * the compound hidden state of a progeny is a pair of gametes, one from
+ * each parent, and the transition probabilities factorise over the two
+ * gametes, i.e., trans(z,k) = gtrans[c(z0,k0)]*gtrans[c(z1,k1)]. the
+ * posterior is approximated by a product of two Markov chains with G
+ * states each (structured mean-field), which are updated in turn by
+ * forward/backward on the expected log emission probabilities. time
+ * and memory are O(M*G) per sample and chain instead of O(M*G^2),
+ * while the emission counts still cost O(M*G^2). the reported
+ * loglik is the evidence lower bound.
+ *
+ */
+
+public class FactorialTrainer extends BaumWelchTrainer {
+	private final static Logger myLogger = LogManager.getLogger(FactorialTrainer.class);
+
+	private final static int mf_iter = 2; // #mean-field sweeps per EM iteration
+
+	private int G; // #gametes per parent
+	private int[][] gc; // #haplotypes shared by two gametes
+	private ChainUnit[] chains;
+
+	public FactorialTrainer() {
+		// TODO Auto-generated constructor stub
+		super();
+		// the gamete chains are small, never checkpointed
+		this.memory_budget = Long.MAX_VALUE;
+	}
+
+	public static FactorialTrainer copyOf(EmissionModel model) {
+		FactorialTrainer hmm = new FactorialTrainer();
+		// expectations of the log emission probabilities are needed
+		hmm.copy(model, true);
+		myLogger.info("factorial HMM with "+hmm.G+" gametes per parent.");
+		return hmm;
+	}
+
+	@Override
+	public void makeNaiveTrainer() {
+		// TODO Auto-generated method stub
+		this.G = state1.getG();
+		this.gc = state1.getGconfs();
+		this.chains = new ChainUnit[N];
+		for(int i=0; i<N; i++) {
+			if(fi1ter[i]) continue;
+			if(sspace[i].length==1) {
+				chains[i] = new ChainUnit(0);
+				continue;
+			}
+			if(sspace[i].length!=K-2)
+				throw new RuntimeException("factorial HMM needs the full F1 state space!!!");
+			chains[i] = new ChainUnit();
+		}
+	}
+
+	@Override
+	public void forward() {
+		// TODO Auto-generated method stub
+		parallel(N, this::meanField);
+	}
+
+	@Override
+	public void backward() {
+		// TODO Auto-generated method stub
+		// the backward passes of the gamete chains run in forward()
+		return;
+	}
+
+	@Override
+	public void check() {
+		// TODO Auto-generated method stub
+		// no backward likelihood to compare with
+		return;
+	}
+
+	private void meanField(final int i) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return;
+
+		final int[] ss = sspace[i];
+		if(ss.length==1) {
+			this.fixed(i, ss[0]);
+			return;
+		}
+
+		final ChainUnit c = chains[i];
+		final double[][] E = new double[M][G];
+		final double[][] fw = new double[M][G], bw = new double[M][G];
+		double hp = 0, zm = 0;
+		for(int r=0; r<mf_iter; r++) {
+			this.paternal(i, c.qm, E, 0, M);
+			hp = this.chain(E, c.qp, c.jp, fw, bw, 0, M);
+			hp -= expectation(E, c.qp, 0, M);
+			this.maternal(i, c.qp, E, 0, M);
+			zm = this.chain(E, c.qm, c.jm, fw, bw, 0, M);
+		}
+		c.probability = zm+hp;
+	}
+
+	/***
+	 * a sample with a fixed hidden state, i.e., a parent
+	 */
+	private void fixed(final int i, final int s) {
+		// TODO Auto-generated method stub
+		double probability = 0;
+		for(int j=0; j<M; j++)
+			probability += obs.emiss(i, j)[s];
+		for(int j=0; j<M-1; j++)
+			probability += Math.log(transition[j].trans(s, s));
+		chains[i].probability = probability;
+	}
+
+	/***
+	 * expected log emission probabilities of the paternal gametes
+	 * given the marginals of the maternal gametes
+	 */
+	private void paternal(final int i, final double[][] qm, final double[][] E,
+			final int from, final int to) {
+		// TODO Auto-generated method stub
+		double[] emiss, q;
+		double x;
+		int off;
+		for(int j=from; j<to; j++) {
+			emiss = obs.emiss(i, j);
+			q = qm[j];
+			for(int p=0; p<G; p++) {
+				off = 2+p*G;
+				x = 0;
+				for(int m=0; m<G; m++)
+					x += q[m]*emiss[off+m];
+				E[j][p] = x;
+			}
+		}
+	}
+
+	/***
+	 * expected log emission probabilities of the maternal gametes
+	 * given the marginals of the paternal gametes
+	 */
+	private void maternal(final int i, final double[][] qp, final double[][] E,
+			final int from, final int to) {
+		// TODO Auto-generated method stub
+		double[] emiss, q, e;
+		double x;
+		int off;
+		for(int j=from; j<to; j++) {
+			emiss = obs.emiss(i, j);
+			q = qp[j];
+			e = E[j];
+			Arrays.fill(e, 0);
+			for(int p=0; p<G; p++) {
+				x = q[p];
+				if(x==0) continue;
+				off = 2+p*G;
+				for(int m=0; m<G; m++)
+					e[m] += x*emiss[off+m];
+			}
+		}
+	}
+
+	private static double expectation(final double[][] E, final double[][] q,
+			final int from, final int to) {
+		// TODO Auto-generated method stub
+		double x = 0;
+		for(int j=from; j<to; j++)
+			for(int k=0; k<E[j].length; k++)
+				x += q[j][k]*E[j][k];
+		return x;
+	}
+
+	/***
+	 * forward/backward of a gamete chain on markers [from, to) with
+	 * log emission probabilities E. fills in the marginals q and the
+	 * expected #jumps between adjacent markers. columns are normalised
+	 * to sum to one and the log normalisers accumulate to the log
+	 * partition function which is returned.
+	 */
+	private double chain(final double[][] E, final double[][] q, final double[] jumps,
+			final double[][] fw, final double[][] bw, final int from, final int to) {
+		// TODO Auto-generated method stub
+		final double[] mx = new double[to];
+		final double[] y = new double[G];
+		double[] gt, gj, f, e;
+		int[] gz;
+		double s, x, r, num, den;
+
+		for(int j=from; j<to; j++) mx[j] = StatUtils.max(E[j]);
+
+		f = fw[from];
+		e = E[from];
+		s = 0;
+		for(int a=0; a<G; a++) {
+			f[a] = Math.exp(e[a]-mx[from])/G;
+			s += f[a];
+		}
+		for(int a=0; a<G; a++) f[a] /= s;
+		double logZ = mx[from]+Math.log(s);
+
+		for(int j=from+1; j<to; j++) {
+			gt = transition[j-1].getGtrans();
+			f = fw[j];
+			e = E[j];
+			Arrays.fill(f, 0);
+			for(int a=0; a<G; a++) {
+				x = fw[j-1][a];
+				if(x==0) continue;
+				gz = gc[a];
+				for(int b=0; b<G; b++)
+					f[b] += x*gt[gz[b]];
+			}
+			s = 0;
+			for(int b=0; b<G; b++) {
+				f[b] *= Math.exp(e[b]-mx[j]);
+				s += f[b];
+			}
+			for(int b=0; b<G; b++) f[b] /= s;
+			logZ += mx[j]+Math.log(s);
+		}
+
+		Arrays.fill(bw[to-1], 1.0/G);
+		for(int j=to-2; j>=from; j--) {
+			gt = transition[j].getGtrans();
+			gj = transition[j].getGjump();
+			e = E[j+1];
+			for(int b=0; b<G; b++)
+				y[b] = Math.exp(e[b]-mx[j+1])*bw[j+1][b];
+			f = fw[j];
+			num = 0;
+			den = 0;
+			s = 0;
+			for(int a=0; a<G; a++) {
+				gz = gc[a];
+				x = 0;
+				r = 0;
+				for(int b=0; b<G; b++) {
+					x += gt[gz[b]]*y[b];
+					r += gj[gz[b]]*y[b];
+				}
+				bw[j][a] = x;
+				s += x;
+				num += f[a]*r;
+				den += f[a]*x;
+			}
+			jumps[j] = num/den;
+			for(int a=0; a<G; a++) bw[j][a] /= s;
+		}
+
+		for(int j=from; j<to; j++) {
+			s = 0;
+			for(int a=0; a<G; a++) {
+				q[j][a] = fw[j][a]*bw[j][a];
+				s += q[j][a];
+			}
+			for(int a=0; a<G; a++) q[j][a] /= s;
+		}
+
+		return logZ;
+	}
+
+	@Override
+	public void em() {
+		// TODO Auto-generated method stub
+		parallel(M, this::updateEmiss);
+
+		if(bwt_iter%trans_alter==0) {
+			parallel(M-1, this::updateTrans);
+			myLogger.info("jump probabilities updated.");
+		} else {
+			double jump1, jump2;
+			for(int i : conjs) {
+				jump1 = transition[i].getJump();
+				updateTrans(i);
+				jump2 = transition[i].getJump();
+				myLogger.info("jump probability at conjunction #"+i+" updated: "+jump1+"->"+jump2+";");
+			}
+		}
+	}
+
+	private void updateEmiss(final int i) {
+		// TODO Auto-generated method stub
+		double coeff;
+		double[] qp, qm;
+		int[] ss;
+		int acnt, bcnt, off;
+
+		EmissionUnit e1;
+		e1 = emission[i];
+		e1.pseudoCount();
+		for(int j=0; j<N; j++) {
+			if(fi1ter[j]) continue;
+
+			ss = sspace[j];
+			acnt = obs.aa(j, i);
+			bcnt = obs.cov(j, i)-acnt;
+			coeff = weights[j==parents_i[0]||j==parents_i[1]?0:1];
+
+			if(ss.length==1) {
+				e1.addCount(ss[0], acnt, bcnt, coeff);
+				continue;
+			}
+
+			// posterior of the compound state is qp*qm
+			qp = chains[j].qp[i];
+			qm = chains[j].qm[i];
+			for(int p=0; p<G; p++) {
+				if(qp[p]==0) continue;
+				off = 2+p*G;
+				for(int m=0; m<G; m++)
+					e1.addCount(off+m, acnt, bcnt, coeff*qp[p]*qm[m]);
+			}
+		}
+		e1.update();
+	}
+
+	private void updateTrans(final int i) {
+		// TODO Auto-generated method stub
+		int[] ss;
+		double jumps;
+
+		TransitionUnit t1;
+		t1 = transition[i];
+		t1.pseudoCount();
+		for(int j=0; j<N; j++) {
+			if(fi1ter[j]) continue;
+
+			ss = sspace[j];
+			if(ss.length==1) {
+				t1.addCount(ss[0], ss[0], 1.0);
+				continue;
+			}
+
+			jumps = chains[j].jp[i]+chains[j].jm[i];
+			t1.addCount(jumps, H-jumps);
+		}
+		t1.update();
+	}
+
+	@Override
+	public double loglik() {
+		// TODO Auto-generated method stub
+		if(iteration==0)
+			return Double.NEGATIVE_INFINITY;
+		else {
+			double probability = 0;
+			for(int i=0; i<N; i++) {
+				if(fi1ter[i]) continue;
+				probability += weights[i==parents_i[0]||i==parents_i[1]?0:1]*chains[i].probability;
+			}
+			return probability;
+		}
+	}
+
+	@Override
+	public double loglik(final int from, final int to) {
+		// TODO Auto-generated method stub
+		// one mean-field sweep on the segment started from the
+		// maternal marginals of the whole model
+		if(iteration==0)
+			return Double.NEGATIVE_INFINITY;
+		final double[] probability = new double[N];
+		parallel(N, i -> {
+			if(fi1ter[i]) return;
+			int[] ss = sspace[i];
+			double coeff = weights[i==parents_i[0]||i==parents_i[1]?0:1];
+			if(ss.length==1) {
+				int s = ss[0];
+				double x = 0;
+				for(int j=from; j<to; j++)
+					x += obs.emiss(i, j)[s];
+				for(int j=from; j<to-1; j++)
+					x += Math.log(transition[j].trans(s, s));
+				probability[i] = coeff*x;
+				return;
+			}
+			final double[][] E = new double[M][G], q = new double[M][G];
+			final double[][] fw = new double[M][G], bw = new double[M][G];
+			final double[] jumps = new double[M];
+			this.paternal(i, chains[i].qm, E, from, to);
+			double hp = this.chain(E, q, jumps, fw, bw, from, to)-
+					expectation(E, q, from, to);
+			this.maternal(i, q, E, from, to);
+			probability[i] = coeff*(this.chain(E, q, jumps, fw, bw, from, to)+hp);
+		});
+		return StatUtils.sum(probability);
+	}
+
+	@Override
+	public double findPath() {
+		// TODO Auto-generated method stub
+		final double[] probability = new double[N];
+		parallel(N, i -> probability[i] = findPath(i));
+		return StatUtils.sum(probability);
+	}
+
+	/***
+	 * the paternal gametes are decoded with the expected log emission
+	 * probabilities and then the maternal gametes given the paternal
+	 * path. returns the log joint probability of the decoded path.
+	 */
+	private double findPath(final int i) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return 0;
+
+		final int[] ss = sspace[i];
+		final int[] path = pas[i].path;
+
+		if(ss.length==1) {
+			Arrays.fill(path, ss[0]);
+			return chains[i].probability;
+		}
+
+		final double[][] E = new double[M][G];
+		final double[][] v = new double[M][G];
+		final int[][] trace = new int[M-1][G];
+		final int[] pp = new int[M], pm = new int[M];
+
+		this.paternal(i, chains[i].qm, E, 0, M);
+		viterbi(E, v, trace, pp);
+		for(int j=0; j<M; j++) {
+			int off = 2+pp[j]*G;
+			for(int m=0; m<G; m++)
+				E[j][m] = obs.emiss(i, j)[off+m];
+		}
+		viterbi(E, v, trace, pm);
+
+		double probability = -2*Math.log(G);
+		for(int j=0; j<M; j++) {
+			path[j] = 2+pp[j]*G+pm[j];
+			probability += obs.emiss(i, j)[path[j]];
+		}
+		for(int j=0; j<M-1; j++)
+			probability += Math.log(transition[j].trans(path[j], path[j+1]));
+		return probability;
+	}
+
+	/***
+	 * Viterbi of a gamete chain in log space. stays are
+	 * preferred over jumps of the same probability.
+	 */
+	private void viterbi(final double[][] E, final double[][] v, final int[][] trace, final int[] path) {
+		// TODO Auto-generated method stub
+		final double[] lt = new double[H/2+1];
+		double[] gt;
+		int[] gz;
+		double a, c;
+		int s;
+
+		for(int k=0; k<G; k++) v[0][k] = E[0][k];
+		for(int j=1; j<M; j++) {
+			gt = transition[j-1].getGtrans();
+			for(int u=0; u<lt.length; u++) lt[u] = Math.log(gt[u]);
+			for(int k=0; k<G; k++) {
+				gz = gc[k];
+				s = k;
+				c = v[j-1][k]+lt[gz[k]];
+				for(int z=0; z<G; z++) {
+					a = v[j-1][z]+lt[gz[z]];
+					if(a>c) {
+						c = a;
+						s = z;
+					}
+				}
+				trace[j-1][k] = s;
+				v[j][k] = c+E[j][k];
+			}
+		}
+
+		s = 0;
+		for(int k=1; k<G; k++)
+			if(v[M-1][k]>v[M-1][s]) s = k;
+		path[M-1] = s;
+		for(int j=M-2; j>=0; j--) {
+			s = trace[j][s];
+			path[j] = s;
+		}
+	}
+
+	protected class ChainUnit { /** marginals of the two gamete chains */
+		protected final double[][] qp, qm; // paternal and maternal marginals
+		protected final double[] jp, jm;   // expected #jumps between markers
+		protected double probability;      // evidence lower bound
+
+		public ChainUnit() {
+			// TODO Auto-generated constructor stub
+			this(M);
+			for(int j=0; j<M; j++) {
+				Arrays.fill(qp[j], 1.0/G);
+				Arrays.fill(qm[j], 1.0/G);
+			}
+		}
+
+		public ChainUnit(final int m) {
+			// TODO Auto-generated constructor stub
+			this.qp = new double[m][G];
+			this.qm = new double[m][G];
+			this.jp = new double[Math.max(m-1, 0)];
+			this.jm = new double[Math.max(m-1, 0)];
+		}
+	}
+}
@@ -138,6 +138,43 @@ public class ModelReader {
 		throw new RuntimeException("!!!");
 	}
 
+	public double[] getJumps() {
+		// TODO Auto-generated method stub
+		try {
+			setEntryReader("transition");
+			String line;
+			List<Double> jumps = new ArrayList<>();
+			while((line=br.readLine())!=null) {
+				String[] s = line.split("\\s+");
+				jumps.add(Double.parseDouble(s[s.length-1]));
+			}
+			closeReader();
+			return ArrayUtils.toPrimitive(jumps.toArray(new Double[jumps.size()]));
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		throw new RuntimeException("!!!");
+	}
+	
+	public List<String[]> getSnps() {
+		// TODO Auto-generated method stub
+		// scaffold, position, contig, position on contig, SNP id, two alleles
+		try {
+			setEntryReader("snp");
+			String line;
+			List<String[]> snps = new ArrayList<>();
+			while((line=br.readLine())!=null) 
+				snps.add(line.split("\\s+"));
+			closeReader();
+			return snps;
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		throw new RuntimeException("!!!");
+	}
+
 	public int getMarkerNo() {
 		// TODO Auto-generated method stub
 		try {
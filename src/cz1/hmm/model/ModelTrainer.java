@@ -2,19 +2,29 @@ package cz1.hmm.model;
 
 import java.util.Arrays;
 
-
+import org.apache.commons.math3.stat.StatUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import cz1.hmm.data.DataEntry;
 import cz1.math.Algebra;
+import cz1.util.Constants;
 import cz1.util.Constants.Field;
 
+/***
+ * no transitions are allowed in stage I, so the hidden state of a 
+ * sample is the same across all markers. the forward and backward 
+ * probabilities at marker j add up to the total of the emissions 
+ * along the path of the state, and the posterior probabilities are
+ * the same at all markers. only O(K) values are kept per sample.
+ * 
+ */
+
 public class ModelTrainer extends EmissionModel implements ForwardBackwardTrainer {
 	
 	private final static Logger myLogger = LogManager.getLogger(ModelTrainer.class);
 	
-	private FBUnit[] forward, backward;
+	private PostUnit[] posterior;
 	
 	public ModelTrainer(DataEntry[] de, 
 			double[] seperation, 
@@ -23,10 +33,45 @@ public class ModelTrainer extends EmissionModel implements ForwardBackwardTraine
 			int ploidy,
 			String[] parents) {
 		// TODO Auto-generated constructor stub
-		super(de, seperation, reverse, field, ploidy, parents, true);
+		this(de, seperation, reverse, field, ploidy, parents, Constants.nextSeed());
+	}
+	
+	public ModelTrainer(DataEntry[] de, 
+			double[] seperation, 
+			boolean[] reverse, 
+			Field field,
+			int ploidy,
+			String[] parents,
+			long seed) {
+		// TODO Auto-generated constructor stub
+		this(de, seperation, reverse, field, ploidy, parents, seed, false);
+	}
+	
+	public ModelTrainer(DataEntry[] de, 
+			double[] seperation, 
+			boolean[] reverse, 
+			Field field,
+			int ploidy,
+			String[] parents,
+			long seed,
+			boolean compress) {
+		// TODO Auto-generated constructor stub
+		super(de, seperation, reverse, field, ploidy, parents, true, seed, compress);
 		this.makeNaiveTrainer();
 	}
 
+	public ModelTrainer() {
+		// TODO Auto-generated constructor stub
+		super();
+	}
+	
+	public static ModelTrainer copyOf(ModelTrainer model, long seed) {
+		ModelTrainer hmm = new ModelTrainer();
+		hmm.restart(model, seed);
+		hmm.makeNaiveTrainer();
+		return hmm;
+	}
+
 	@Override
 	public void train() {
 		// TODO Auto-generated method stub
@@ -42,12 +87,9 @@ public class ModelTrainer extends EmissionModel implements ForwardBackwardTraine
 	@Override
 	public void makeNaiveTrainer() {
 		// TODO Auto-generated method stub
-		this.forward = new FBUnit[N];
+		this.posterior = new PostUnit[N];
 		for(int i=0; i<N; i++) 
-			this.forward[i] = new FBUnit(false);
-		this.backward = new FBUnit[N];
-		for(int i=0; i<N; i++) 
-			this.backward[i] = new FBUnit(true);
+			this.posterior[i] = new PostUnit();
 		return;
 	}
 
@@ -55,30 +97,31 @@ public class ModelTrainer extends EmissionModel implements ForwardBackwardTraine
 	@Override
 	public double findPath() {
 		// TODO Auto-generated method stub
-		double probability = 0.0;
-		for(int i=0; i<N; i++) {
-			if(fi1ter[i]) continue;
-			Integer[] ss = this.sspace.get(i);
-			ObUnit[] ob = obs[i];
-			double max_ll = Double.NEGATIVE_INFINITY, ll;
-			int max_s = -1;
-			
-			for(int k : ss) {
-				ll = 0;
-				for(int j=0; j<M; j++)
-					ll += ob[j].emiss[k];
-				if(ll>max_ll) {
-					max_ll = ll;
-					max_s = k;
-				}
+		final double[] probability = new double[N];
+		parallel(N, i -> probability[i] = findPath(i));
+		return StatUtils.sum(probability);
+	}
+	
+	private double findPath(final int i) {
+		// TODO Auto-generated method stub
+		if(fi1ter[i]) return 0;
+		int[] ss = this.sspace[i];
+		double max_ll = Double.NEGATIVE_INFINITY, ll;
+		int max_s = -1;
+
+		for(int k : ss) {
+			ll = 0;
+			for(int j=0; j<M; j++)
+				ll += obs.emiss(i, j)[k];
+			if(ll>max_ll) {
+				max_ll = ll;
+				max_s = k;
 			}
-			
-			probability += max_ll;
-			PathUnit pas_i = this.pas[i];
-			Arrays.fill(pas_i.path, max_s);
-			Arrays.fill(pas_i.path_str, this.state.hsc_str[max_s]);
 		}
-		return probability;
+
+		PathUnit pas_i = this.pas[i];
+		Arrays.fill(pas_i.path, max_s);
+		return max_ll;
 	}
 
 	@Override
@@ -92,26 +135,19 @@ public class ModelTrainer extends EmissionModel implements ForwardBackwardTraine
 		for(int i=0; i<N; i++) {
 			if(fi1ter[i]) continue;
 			
-			Integer[] ss = sspace.get(i);
+			int[] ss = sspace[i];
 			double pi = Math.log(1.0/ss.length);
 
-			double[][] probsMat = new double[m][K];
-			for(int j=0; j<m; j++)
-				Arrays.fill(probsMat[j], Double.NEGATIVE_INFINITY);
-				
-			ObUnit[] ob = obs[i];
-
-			double[] emiss = ob[fromIndex].emiss;
+			double[] probs = new double[K];
+			Arrays.fill(probs, Double.NEGATIVE_INFINITY);
 			
-			for(int k : ss) probsMat[0][k] = pi+emiss[k];
-
-			for(int j=1; j<m; j++) {
-
-				emiss = ob[fromIndex+j].emiss;
+			for(int k : ss) probs[k] = pi;
+			for(int j=fromIndex; j<toIndex; j++) {
+				double[] emiss = obs.emiss(i, j);
 				for(int k : ss)
-					probsMat[j][k] = emiss[k]+probsMat[j-1][k];	
+					probs[k] += emiss[k];	
 			}
-			probability += Algebra.sumExps(probsMat[m-1]);
+			probability += Algebra.sumExps(probs);
 		}
 		return probability;	
 	}
@@ -119,97 +155,84 @@ public class ModelTrainer extends EmissionModel implements ForwardBackwardTraine
 	@Override
 	public void forward() {
 		// TODO Auto-generated method stub
-		for(int i=0; i<N; i++) {
-			if(fi1ter[i]) continue;
-			
-			Integer[] ss = sspace.get(i);
-			double pi = Math.log(1.0/ss.length);
-
-			double[][] probsMat = forward[i].probsMat;
-			ObUnit[] ob = obs[i];
+		parallel(N, this::forward);
+		return;
+	}
+	
+	private void forward(final int i) {
+		// TODO Auto-generated method stub
+		// log probability of the path of each state
+		if(fi1ter[i]) return;
 
-			double[] emiss = ob[0].emiss;
-			
-			for(int k : ss) probsMat[0][k] = pi+emiss[k];
+		int[] ss = sspace[i];
+		double pi = Math.log(1.0/ss.length);
 
-			for(int j=1; j<M; j++) {
+		double[] probs = posterior[i].probs;
 
-				emiss = ob[j].emiss;
-				for(int k : ss)
-					probsMat[j][k] = emiss[k]+probsMat[j-1][k];	
-			}
-			forward[i].probability(Algebra.sumExps(probsMat[M-1]));
+		double[] emiss;
+		for(int k : ss) probs[k] = pi;
+		for(int j=0; j<M; j++) {
+			emiss = obs.emiss(i, j);
+			for(int k : ss)
+				probs[k] += emiss[k];	
 		}
-		return;
+		posterior[i].probability(Algebra.sumExps(probs));
 	}
 
 	@Override
 	public void backward() {
 		// TODO Auto-generated method stub
-		for(int i=0; i<N; i++) {
-			if(fi1ter[i]) continue;
-			
-			Integer[] ss = sspace.get(i);
-			double[][] probsMat = backward[i].probsMat;
-			ObUnit[] ob = obs[i];
-			
-			double[] emiss;
-			for(int k : ss) probsMat[M-1][k] = 0;
-			
-			for(int j=M-2; j>=0; j--) {	
-				emiss = ob[j+1].emiss;
-				for(int k : ss) 
-					probsMat[j][k] = emiss[k]+probsMat[j+1][k];
-			}
-			
-			double pi = Math.log(1.0/ss.length);
-			emiss = ob[0].emiss;
-			double[] logs = new double[ss.length];
-			int j=0;
-			for(int k : ss) logs[j++] = pi+emiss[k]+probsMat[0][k];
-			backward[i].probability(Algebra.sumExps(logs));
-		}
+		parallel(N, this::backward);
 		return;
 	}
+	
+	private void backward(final int i) {
+		// TODO Auto-generated method stub
+		// posterior probabilities of the states which 
+		// are the same at all markers
+		if(fi1ter[i]) return;
+
+		int[] ss = sspace[i];
+		double[] probs = posterior[i].probs;
+		double probability = posterior[i].probability;
+		for(int k : ss) 
+			probs[k] = Math.exp(probs[k]-probability);
+	}
 
 	@Override
 	public void em() {
 		// TODO Auto-generated method stub
-		FBUnit fw1, bw1;
-		ObUnit ob1;
+		parallel(M, this::updateEmiss);
+	}
+	
+	private void updateEmiss(final int i) {
+		// TODO Auto-generated method stub
+		PostUnit po1;
 		double count, coeff;
-		Integer[] ss;
+		int[] ss;
 		
 		int acnt, bcnt;
 		EmissionUnit e1;
-		for(int i=0; i<M; i++) {
-			e1 = emission[i];
-			e1.pseudoCount();
-			
-			for(int j=0;j<N; j++) {
-				if(fi1ter[j]) continue;
-				
-				ss = sspace.get(j);
-				fw1 = forward[j];
-				bw1 = backward[j];
-				ob1 = obs[j][i];
-				acnt = ob1.getAa();
-				bcnt = ob1.getCov()-acnt;
-				coeff = weights[j==parents_i[0]||j==parents_i[1]?0:1];
-				
-				for(int a : ss) {
-					count = coeff*
-							Math.exp(fw1.probsMat[i][a]+
-							bw1.probsMat[i][a]-
-							fw1.probability);
-					e1.addCount(a, acnt, bcnt, count);
-				}
+		e1 = emission[i];
+		e1.pseudoCount();
+
+		for(int j=0;j<N; j++) {
+			if(fi1ter[j]) continue;
+
+			ss = sspace[j];
+			po1 = posterior[j];
+			acnt = obs.aa(j, i);
+			bcnt = obs.cov(j, i)-acnt;
+			coeff = weights[j==parents_i[0]||j==parents_i[1]?0:1];
+
+			for(int a : ss) {
+				count = coeff*po1.probs[a];
+				e1.addCount(a, acnt, bcnt, count);
 			}
-			e1.update();
 		}
+		e1.update();
 	}
 
-
 	@Override
 	public double loglik() {
 		// TODO Auto-generated method stub
@@ -218,7 +241,7 @@ public class ModelTrainer extends EmissionModel implements ForwardBackwardTraine
 		else {
 			double probability = 0;
 			for(int i=0; i<N; i++)
-				probability += weights[i==parents_i[0]||i==parents_i[1]?0:1]*this.forward[i].probability;
+				probability += weights[i==parents_i[0]||i==parents_i[1]?0:1]*this.posterior[i].probability;
 			return probability;
 		}
 	}
@@ -227,11 +250,12 @@ public class ModelTrainer extends EmissionModel implements ForwardBackwardTraine
 	public void check() {
 		// TODO Auto-generated method stub
 		if(iteration==0) return;
-		for(int i=0; i<this.forward.length; i++) {
-			double r = Math.abs(forward[i].probability-backward[i].probability);
-			if(r>1e-6) 
-				throw new RuntimeException("Different likelihood by forward and backward algorithm: forward, "+
-						forward[i].probability+"; backward, "+backward[i].probability);
+		for(int i=0; i<N; i++) {
+			if(fi1ter[i]) continue;
+			double p = 0;
+			for(int k : sspace[i]) p += posterior[i].probs[k];
+			if(Math.abs(p-1)>1e-6) 
+				throw new RuntimeException("Posterior probabilities do not sum up to 1: "+p+"!!!");
 		}
 	}
 
@@ -241,17 +265,14 @@ public class ModelTrainer extends EmissionModel implements ForwardBackwardTraine
 		
 	}
 	
-	protected class FBUnit { /** forward/backward unit */
-		protected double[][] probsMat;
+	protected class PostUnit { /** path total/posterior unit */
+		protected double[] probs; // log path totals after forward, posteriors after backward
 		protected double probability;
-		protected final boolean backward;
 
-		public FBUnit(boolean backward) {
-			this.backward = backward;
+		public PostUnit() {
 			this.probability = 0;
-			this.probsMat = new double[M][K];
-			for(int i=0; i<M; i++)
-				Arrays.fill(probsMat[i], Double.NEGATIVE_INFINITY);
+			this.probs = new double[K];
+			Arrays.fill(probs, Double.NEGATIVE_INFINITY);
 		}
 
 		public void probability(double p) {
@@ -21,10 +21,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import cz1.hmm.data.DataCollection;
+import cz1.hmm.model.ModelReader;
 import cz1.util.ArgsEngine;
+import cz1.util.Constants;
 import cz1.util.Executor;
 import cz1.util.Utils;
 
@@ -49,6 +52,8 @@ public class Gembler extends Executor {
 	private int min_snpc = 5;
 	private int[] nr = new int[]{30,30,10};
 	private int refine_round = 3;
+	private int dc_window = 0; // #member contigs per window of the divide-and-conquer training
+	private boolean warm_start = false; // initialise runs from the results of earlier steps
 	
 	// recombination frequency estimation and assembly error detection
 	private double err_rf = 0.1;
@@ -85,6 +90,7 @@ public class Gembler extends Executor {
 						+ "     -o/--prefix                 Output file location, create the directory if not exist.\n"
 						+ "     -p/--ploidy                 Ploidy of genome (default 2).\n"
 						+ "     -t/--threads                Threads (default 1).\n"
+						+ "     -S/--random-seed            Random seed (default system nano time).\n"
 						+ "     -rlib/--R-external-libs     External library paths that you want R to search for packages.\n"
 						+ "                                 This could be useful if you are not root users and install R \n"
 						+ "                                 packages in directories other than default. \n"
@@ -111,6 +117,16 @@ public class Gembler extends Executor {
 						+ "                                 linkage map refinement. Three values should be separated by ',' \n"
 						+ "                                 (default 30,30,10).\n"
 						+ "     -rr/--refinement-round      Number of rounds to refine pseudomelecules (default 3).\n"
+						+ "     -dc/--divide-conquer        Train the linkage groups of more than the given number of \n"
+						+ "                                 member contigs in overlapping windows of that many contigs \n"
+						+ "                                 in parallel first. The founder haplotypes of the windows are \n"
+						+ "                                 aligned over the contigs in common and the whole linkage \n"
+						+ "                                 group is polished from them for a tenth of the EM iterations \n"
+						+ "                                 in the first refinement round (default 0, disabled).\n"
+						+ "     -ws/--warm-start            Initialise the superscaffold and linkage group runs from \n"
+						+ "                                 the results of the member contigs, and each refinement \n"
+						+ "                                 round from the results of the round before, instead of \n"
+						+ "                                 independent random starts (default false).\n"
 						+ "\n"
 						+ " Recombination frequency estimation and assembly error detection:\n"
 						+ "     -asmr/--asmr-thresh         Recombination frequency threshold for assembly error detection (default 0.1).\n"
@@ -158,6 +174,7 @@ public class Gembler extends Executor {
 			myArgsEngine.add("-o", "--prefix", true);
 			myArgsEngine.add("-p", "--ploidy", true);
 			myArgsEngine.add("-t", "--threads", true);
+			myArgsEngine.add("-S", "--random-seed", true);
 			myArgsEngine.add("-rlib", "--R-external-libs", true);
 			
 			myArgsEngine.add("-l", "--min-depth", true);
@@ -173,6 +190,8 @@ public class Gembler extends Executor {
 			myArgsEngine.add("-c", "--min-snp-count", true);
 			myArgsEngine.add("-r", "--repeat", true);
 			myArgsEngine.add("-rr", "--refinement-round", true);
+			myArgsEngine.add("-dc", "--divide-conquer", true);
+			myArgsEngine.add("-ws", "--warm-start", false);
 			
 			myArgsEngine.add("-asmr", "--asmr-thresh", true);
 			myArgsEngine.add("-wbp", "--windows-bp", true);
@@ -220,6 +239,10 @@ public class Gembler extends Executor {
 			THREADS = Integer.parseInt(myArgsEngine.getString("-t"));
 		}
 		
+		if(myArgsEngine.getBoolean("-S")) {
+			Constants.seeding(Long.parseLong(myArgsEngine.getString("-S")));
+		}
+		
 		if (myArgsEngine.getBoolean("-rlib")) {
 			RLibPath = myArgsEngine.getString("-rlib");
 		}
@@ -283,6 +306,17 @@ public class Gembler extends Executor {
 			refine_round = Integer.parseInt(myArgsEngine.getString("-rr"));
 		}
 		
+		if (myArgsEngine.getBoolean("-dc")) {
+			dc_window = Integer.parseInt(myArgsEngine.getString("-dc"));
+			if(dc_window==1||dc_window<0)
+				throw new IllegalArgumentException("Option -dc/--divide-conquer should "
+						+ "be at least 2 contigs, or 0 to disable.");
+		}
+		
+		if (myArgsEngine.getBoolean("-ws")) {
+			warm_start = true;
+		}
+		
 		if (myArgsEngine.getBoolean("-asmr")) {
 			err_rf = Double.parseDouble(myArgsEngine.getString("-asmr"));
 		}
@@ -427,6 +461,11 @@ public class Gembler extends Executor {
 			this.runHaplotyper(newScaffStats, expr_id, in_zip, nr[0], outs);
 		}
 
+		// results of the single contigs ranked by likelihood to initialise
+		// the superscaffolds, none unless warm started
+		final Map<String, List<String>> h1_zips = warm_start ? 
+				this.rankZips(outs, expr_id) : new HashMap<String, List<String>>();
+		
 		//#### STEP 04 build superscaffolds using nearest neighbor joining
 		if(ss) {
 			myLogger.info("STEP 04 build superscaffolds using nearest neighbor joining");
@@ -462,7 +501,7 @@ public class Gembler extends Executor {
 			Map<String, String> nn_reverse = new HashMap<String, String>();
 			this.readSS(outPref+".nns", nn_scaffs, nn_separation, nn_reverse);
 			this.runHaplotyper(nn_scaffs, nn_separation, nn_reverse,
-					expr_id, in_zip, nr[1], outs);
+					expr_id, in_zip, nr[1], outs, h1_zips);
 		}
 		
 		//#### STEP 05 estimate recombination frequencies
@@ -552,6 +591,13 @@ public class Gembler extends Executor {
 			});
 
 			final String final_zip = in_zip;
+			
+			// the linkage groups of many member contigs are trained in 
+			// windows first and only polished as a whole
+			final Map<String, String[]> dc_zips = dc_window>0 ? this.runWindows(scaff_list, 
+					nn_separation, nn_reverse, expr_id, final_zip, nr[2], lgOutDir+"/dc", h1_zips) : 
+						new HashMap<String, String[]>();
+			
 			final int[][] task_table = new int[refine_round][lgN];
 			final int[] task_progress = new int[lgN];
 
@@ -565,7 +611,12 @@ public class Gembler extends Executor {
 				String lgOutDir_i = lgOutDir+"/"+i;
 				String lgOutDir_ij = lgOutDir_i+"/0";
 				String lgOutDir_ijh = lgOutDir_ij+"/h";
+				final String[] dc_zip = dc_zips.get(scaff_i);
 				for(int j=0; j<nr[2]; j++) {
+					final long seed = Constants.nextSeed();
+					final boolean polish = dc_zip!=null&&dc_zip[j]!=null;
+					final String warm_zip = polish ? dc_zip[j] : this.warmZips(scaff_i, h1_zips, j);
+					final int iter = polish ? Math.max(1, max_iter/10) : max_iter;
 					executor.submit(new Runnable(){
 						private int i;
 						private int j;
@@ -574,18 +625,22 @@ public class Gembler extends Executor {
 							// TODO Auto-generated method stub
 							try {
 								Haplotyper haplo = new Haplotyper();
-								haplo.setParameters(new String[] {
+								String[] args = new String[] {
 										"-i", final_zip,
 										"-o", lgOutDir_ijh,
 										"-ex", expr_id,
 										"-c", scaff_i,
-										"-x", String.valueOf(max_iter),
+										"-x", String.valueOf(iter),
 										"-p", String.valueOf(ploidy),
 										"-f", parents,
 										"-s", nn_separation.get(scaff_i),
 										"-r", nn_reverse.get(scaff_i),
+										"-S", String.valueOf(seed),
 										field
-								});
+								};
+								if(warm_zip!=null) 
+									args = ArrayUtils.addAll(args, "-ws", warm_zip);
+								haplo.setParameters(args);
 								haplo.run();
 								
 								synchronized (task_table) {
@@ -674,8 +729,22 @@ public class Gembler extends Executor {
 							Map<String, String> nn_reverse_i = new HashMap<String, String>();
 							this.readSS(lgOutPrex+".par", nn_scaffs_i, nn_separation_i, nn_reverse_i);
 							String scaff_i = nn_scaffs_i.iterator().next();
-
+							
+							// if warm started each run starts from a result of the last round
+							final String[] warm_zips = !warm_start ? new String[0] :
+								new File(lgOutDir_ijh).list(new FilenameFilter() {
+									@Override
+									public boolean accept(File dir, String name) {
+										// TODO Auto-generated method stub
+										return name.endsWith(".zip");
+									}
+								});
+							Arrays.sort(warm_zips);
+							
 							for(int j=0; j<nr[2]; j++) {
+								final long seed = Constants.nextSeed();
+								final String warm_zip = warm_zips.length==0 ? null : 
+									lgOutDir_ijh+"/"+warm_zips[j%warm_zips.length];
 								executor.submit(new Runnable(){
 									private int i;
 									private int j;
@@ -684,7 +753,7 @@ public class Gembler extends Executor {
 										// TODO Auto-generated method stub
 										try {
 											Haplotyper haplo = new Haplotyper();
-											haplo.setParameters(new String[] {
+											String[] args = new String[] {
 													"-i", final_zip,
 													"-o", lgOutDir_ijh1,
 													"-ex", expr_id,
@@ -694,8 +763,12 @@ public class Gembler extends Executor {
 													"-f", parents,
 													"-s", nn_separation_i.get(scaff_i),
 													"-r", nn_reverse_i.get(scaff_i),
+													"-S", String.valueOf(seed),
 													field
-											});
+											};
+											if(warm_zip!=null) 
+												args = ArrayUtils.addAll(args, "-ws", warm_zip);
+											haplo.setParameters(args);
 											haplo.run();
 											
 											synchronized (task_table) {
@@ -780,6 +853,12 @@ public class Gembler extends Executor {
 					.sorted((o1, o2) -> -o1.compareTo(o2))
 					.forEach(File::delete);
 				}
+				if(new File(lgOutDir+"/dc").exists()) {
+					Files.walk(Paths.get(lgOutDir+"/dc"))
+					.map(Path::toFile)
+					.sorted((o1, o2) -> -o1.compareTo(o2))
+					.forEach(File::delete);
+				}
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -989,6 +1068,159 @@ public class Gembler extends Executor {
 		}
 	}
 
+	private Map<String, List<String>> rankZips(final String dir, 
+			final String expr_id) {
+		// TODO Auto-generated method stub
+		// result zip files of each scaffold sorted by log-likelihood
+		final Map<String, List<String>> zips = new HashMap<String, List<String>>();
+		final Map<String, Double> lls = new HashMap<String, Double>();
+		File[] files = new File(dir).listFiles(
+				new FilenameFilter() {
+					@Override
+					public boolean accept(File dir, String name) {
+						return name.startsWith(expr_id+".")&&name.endsWith(".zip");    
+					}
+				});
+		for(File f : files) {
+			String name = f.getName();
+			String scaff = name.substring(expr_id.length()+1, 
+					name.lastIndexOf(".", name.length()-5));
+			ModelReader model = new ModelReader(f.getAbsolutePath());
+			if(model.isNull()) continue;
+			lls.put(f.getAbsolutePath(), model.getLoglik());
+			model.close();
+			zips.putIfAbsent(scaff, new ArrayList<String>());
+			zips.get(scaff).add(f.getAbsolutePath());
+		}
+		for(List<String> zip : zips.values())
+			Collections.sort(zip, new Comparator<String>() {
+				@Override
+				public int compare(String zip0, String zip1) {
+					// TODO Auto-generated method stub
+					return Double.compare(lls.get(zip1), lls.get(zip0));
+				}
+			});
+		return zips;
+	}
+	
+	private String warmZips(final String scaff, 
+			final Map<String, List<String>> zips,
+			final int i) {
+		// TODO Auto-generated method stub
+		// run i of a superscaffold is initialised from the results of
+		// the member contigs ranked i (the best for the first run), 
+		// so the runs are independent chains
+		List<String> warm = new ArrayList<String>();
+		for(String s : scaff.split(":")) {
+			List<String> zip = zips.get(s);
+			if(zip!=null) warm.add(zip.get(i%zip.size()));
+		}
+		return warm.isEmpty() ? null : StringUtils.join(warm, ":");
+	}
+
+	/***
+	 * divide-and-conquer training of the linkage groups of more than 
+	 * dc_window member contigs. a group is split into windows of 
+	 * dc_window member contigs, each window sharing its first contig
+	 * with the last one of the window before, so every junction of two
+	 * contigs is trained in a window. the windows of all groups are run
+	 * at the same time, each run warm started from the results of its
+	 * member contigs with -ws. run j of a group is then warm started 
+	 * from runs j of its windows, with the founder haplotype labels 
+	 * aligned over the contigs in common (see EmissionModel.warmStart()).
+	 * 
+	 * @return the warm start zip files of the runs of each group
+	 */
+	private Map<String, String[]> runWindows(final List<String> scaffs,
+			final Map<String, String> separation,
+			final Map<String, String> reverse,
+			final String expr_id,
+			final String in_zip,
+			final int repeat,
+			final String out,
+			final Map<String, List<String>> zips) {
+		// TODO Auto-generated method stub
+		final Map<String, List<String>> windows = new HashMap<String, List<String>>();
+		this.initial_thread_pool();
+		for(int i=0; i<scaffs.size(); i++) {
+			final String scaff_i = scaffs.get(i);
+			final String[] s = scaff_i.split(":");
+			if(s.length<=dc_window) continue;
+			final String[] sep = separation.get(scaff_i).split(":"),
+					rev = reverse.get(scaff_i).split(":");
+			final List<String> outs = new ArrayList<String>();
+			for(int a=0; ; a+=dc_window-1) {
+				final int b = Math.min(a+dc_window, s.length);
+				final String scaff = StringUtils.join(s, ":", a, b);
+				final String sep_w = StringUtils.join(sep, ":", a, b-1);
+				final String rev_w = StringUtils.join(rev, ":", a, b);
+				final String out_w = out+"/"+i+"/"+a;
+				outs.add(out_w);
+				for(int j=0; j<repeat; j++) {
+					final String out_wj = out_w+"/"+j;
+					Utils.makeOutputDir(new File(out_wj));
+					final long seed = Constants.nextSeed();
+					final String warm_zip = this.warmZips(scaff, zips, j);
+					executor.submit(new Runnable(){
+
+						@Override
+						public void run() {
+							// TODO Auto-generated method stub
+							try {
+								Haplotyper haplo = new Haplotyper();
+								String[] args = new String[] {
+										"-i", in_zip,
+										"-o", out_wj,
+										"-ex", expr_id,
+										"-c", scaff,
+										"-x", String.valueOf(max_iter),
+										"-p", String.valueOf(ploidy),
+										"-f", parents,
+										"-s", sep_w,
+										"-r", rev_w,
+										"-S", String.valueOf(seed),
+										field
+								};
+								if(warm_zip!=null) 
+									args = ArrayUtils.addAll(args, "-ws", warm_zip);
+								haplo.setParameters(args);
+								haplo.run();
+							} catch (Exception e) {
+								Thread t = Thread.currentThread();
+								t.getUncaughtExceptionHandler().uncaughtException(t, e);
+								e.printStackTrace();
+								executor.shutdown();
+								System.exit(1);
+							}
+						}
+					});
+				}
+				if(b==s.length) break;
+			}
+			windows.put(scaff_i, outs);
+		}
+		this.waitFor();
+		
+		final Map<String, String[]> warm = new HashMap<String, String[]>();
+		for(Map.Entry<String, List<String>> entry : windows.entrySet()) {
+			final String[] warm_zips = new String[repeat];
+			for(int j=0; j<repeat; j++) {
+				final List<String> ws = new ArrayList<String>();
+				for(String out_w : entry.getValue()) {
+					final File[] fs = new File(out_w+"/"+j).listFiles((File f) 
+							-> f.getName().endsWith(".zip"));
+					if(fs!=null&&fs.length>0) ws.add(fs[0].getPath());
+				}
+				// polished only if all the windows are there
+				if(ws.size()==entry.getValue().size()) 
+					warm_zips[j] = StringUtils.join(ws, ":");
+			}
+			warm.put(entry.getKey(), warm_zips);
+			myLogger.info(entry.getKey()+" trained in "+entry.getValue().size()+" windows.");
+		}
+		return warm;
+	}
+
 	private void runHaplotyper(final Map<String, Integer> scaffs,
 			final String expr_id,
 			final String in_zip,
@@ -1001,6 +1233,9 @@ public class Gembler extends Executor {
 			if(scaffs.get(scaff)<this.min_snpc) continue;
 			
 			for(int i=0; i<repeat; i++) {
+				// seeds are drawn here so the runs are reproducible
+				// whatever order the tasks are run in
+				final long seed = Constants.nextSeed();
 				executor.submit(new Runnable(){
 					@Override
 					public void run() {
@@ -1015,6 +1250,7 @@ public class Gembler extends Executor {
 									"-x", String.valueOf(max_iter),
 									"-p", String.valueOf(ploidy),
 									"-f", parents,
+									"-S", String.valueOf(seed),
 									field
 							});
 							haplo.run();
@@ -1038,11 +1274,16 @@ public class Gembler extends Executor {
 			final String expr_id,
 			final String in_zip,
 			final int repeat,
-			final String out) {
+			final String out,
+			final Map<String, List<String>> zips) {
 		// TODO Auto-generated method stub
 		this.initial_thread_pool();
 		for(final String scaff : scaffs) {
 			for(int i=0; i<repeat; i++) {
+				// seeds are drawn here so the runs are reproducible
+				// whatever order the tasks are run in
+				final long seed = Constants.nextSeed();
+				final String warm_zip = this.warmZips(scaff, zips, i);
 				executor.submit(new Runnable(){
 
 					@Override
@@ -1050,7 +1291,7 @@ public class Gembler extends Executor {
 						// TODO Auto-generated method stub
 						try {
 							Haplotyper haplo = new Haplotyper();
-							haplo.setParameters(new String[] {
+							String[] args = new String[] {
 									"-i", in_zip,
 									"-o", out,
 									"-ex", expr_id,
@@ -1060,8 +1301,12 @@ public class Gembler extends Executor {
 									"-f", parents,
 									"-s", separation.get(scaff),
 									"-r", reverse.get(scaff),
+									"-S", String.valueOf(seed),
 									field
-							});
+							};
+							if(warm_zip!=null) 
+								args = ArrayUtils.addAll(args, "-ws", warm_zip);
+							haplo.setParameters(args);
 							haplo.run();
 						} catch (Exception e) {
 							Thread t = Thread.currentThread();
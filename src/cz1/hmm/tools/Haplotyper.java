@@ -1,18 +1,27 @@
 package cz1.hmm.tools;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import cz1.hmm.data.DataCollection;
 import cz1.hmm.data.DataEntry;
 import cz1.hmm.model.BaumWelchTrainer;
+import cz1.hmm.model.FactorialTrainer;
+import cz1.hmm.model.ModelReader;
 import cz1.hmm.model.ModelTrainer;
 import cz1.util.ArgsEngine;
 import cz1.util.Constants;
 import cz1.util.Constants.Field;
+import cz1.util.Constants.Storage;
 import cz1.util.Executor;
 
 public class Haplotyper extends Executor {
@@ -34,6 +43,24 @@ public class Haplotyper extends Executor {
 	private int[] end_pos = null;
 	private int ploidy = 2;
 	private String[] parents;
+	private boolean aggregate = false;
+	private boolean fast_forward = false;
+	private boolean debug = false;
+	private boolean compress = false;
+	private int blocks = 1;
+	private boolean factorial = false;
+	private long memory_budget = Runtime.getRuntime().maxMemory()/2;
+	private Storage storage = Storage.DOUBLE;
+	private boolean squarem = false;
+	private int restarts = 1;
+	private int halving_iter = 10;
+	private int restarts_kept = 1;
+	private long seed;
+	private String[] warm_zip = null;
+	private double prune = 0;
+	private int prune_check = 10;
+	private double beam = 0;
+	private double beam_err = 1e-3;
 
 	@Override
 	public void printUsage() {
@@ -62,7 +89,74 @@ public class Haplotyper extends Executor {
 							+"                              option -D/--allele-depth.\n"
 							+" -D/--allele-depth            Use allele depth to infer haplotypes. Mutually exclusive \n"
 							+"                              with option -G/--genotype.(default)\n"
+							+" -mc/--marker-compression     Collapse the adjacent SNPs of a scaffold with the same \n"
+							+"                              observations in every sample, e.g. the SNPs on one GBS tag, \n"
+							+"                              into one marker with shared emission probabilities. The \n"
+							+"                              results are written for all SNPs.\n"
 							+" -S/--random-seed             Random seed for this run.\n"
+							+" -t/--threads                 Threads for the per-sample forward/backward and Viterbi \n"
+							+"                              recursions of this run. The results do not depend on the \n"
+							+"                              number of threads (default 1).\n"
+							+" -pt/--parallel-time          Split the markers into blocks run in parallel by the \n"
+							+"                              forward/backward of stage II and stitched afterwards, e.g. \n"
+							+"                              the number of threads for long superscaffolds with few \n"
+							+"                              progeny. Ignored if the forward matrices are checkpointed or \n"
+							+"                              stored, or if the backward matrices of all markers do not \n"
+							+"                              fit in the memory budget. Mutually exclusive with options \n"
+							+"                              -ff/--fast-forward, -fh/--factorial and -bm/--beam (default 1).\n"
+							+" -ag/--aggregate              Run forward/backward with transition probabilities grouped \n"
+							+"                              by the number of haplotypes shared by the gametes. This is \n"
+							+"                              much faster for ploidy 4 and above.\n"
+							+" -ff/--fast-forward           Jump over the runs of markers missing in a progeny in one \n"
+							+"                              step of forward/backward with the transitions composed over \n"
+							+"                              the run. Much faster for low coverage data. Needs option \n"
+							+"                              -ag/--aggregate.\n"
+							+" -fh/--factorial              Approximate the posterior of each progeny by two independent \n"
+							+"                              chains of parental gametes (factorial HMM). Memory and time \n"
+							+"                              of forward/backward scale with the number of gametes instead \n"
+							+"                              of its square. The log-likelihood reported is a lower bound. \n"
+							+"                              Mutually exclusive with option -ag/--aggregate.\n"
+							+" -ms/--matrix-storage         Storage of the forward matrices of stage II: double, float \n"
+							+"                              (half the memory, each marker kept relative to its maximum) \n"
+							+"                              or direct (doubles off the Java heap) (default double).\n"
+							+" -mb/--memory-budget          Heap memory budget (in GB) for the forward/backward matrices \n"
+							+"                              and the workspaces of the threads. Forward matrices stored \n"
+							+"                              off the heap (-ms direct) are not counted. If they do not \n"
+							+"                              fit, the forward probabilities are only \n"
+							+"                              kept every sqrt(#markers) markers and recomputed when needed \n"
+							+"                              (default half of the maximum heap size).\n"
+							+" -sq/--squarem                Accelerate EM by SQUAREM extrapolation of the emission and \n"
+							+"                              jump probabilities. Each cycle runs three EM steps. Steps \n"
+							+"                              not improving the likelihood are rejected.\n"
+							+" -rs/--restarts               Number of random initialisations trained side by side on \n"
+							+"                              the same observations (default 1).\n"
+							+" -hi/--halving-iter           Number of EM iterations of stage II between two cullings of \n"
+							+"                              the restarts. Each culling drops the half of the restarts \n"
+							+"                              with the lowest log-likelihoods (default 10).\n"
+							+" -rk/--restarts-kept          Number of restarts kept and written (default 1).\n"
+							+" -ws/--warm-start             Initialise the emission and jump probabilities from a result \n"
+							+"                              zip file of a previous run. Markers are matched by contig and \n"
+							+"                              position, so the scaffolds could be in different order or \n"
+							+"                              orientation. Stage I is skipped if any marker is matched. \n"
+							+"                              Multiple zip files separated by ':', e.g. the results of the \n"
+							+"                              member contigs of a superscaffold, are loaded in order. The \n"
+							+"                              founder haplotype labels of each zip file are permuted to \n"
+							+"                              agree with those loaded already.\n"
+							+" -pr/--prune                  Prune the hidden states of each progeny with a posterior \n"
+							+"                              probability below the threshold at all markers in stage II, \n"
+							+"                              e.g. 1e-6. Much faster for ploidy 4 and above. Mutually \n"
+							+"                              exclusive with option -fh/--factorial (default no pruning).\n"
+							+" -pc/--prune-check            Number of EM iterations of stage II between two checks of \n"
+							+"                              the pruned states with the full state space (default 10).\n"
+							+" -bm/--beam                   Drop the states of each forward column below the threshold \n"
+							+"                              times the column maximum in stage II, e.g. 1e-8. Mutually \n"
+							+"                              exclusive with options -ag/--aggregate and -fh/--factorial \n"
+							+"                              (default no beam).\n"
+							+" -be/--beam-error             Maximum probability mass discarded by the beam per sample. \n"
+							+"                              Samples over it are run with all states (default 1e-3).\n"
+							+" -db/--debug                  Compute the likelihood of each sample by the backward \n"
+							+"                              recursion as well and check it against the forward in \n"
+							+"                              each EM iteration of stage II.\n"
 				);
 	}
 
@@ -91,7 +185,25 @@ public class Haplotyper extends Executor {
 			myArgsEngine.add("-r", "--reverse", true);
 			myArgsEngine.add("-G", "--genotype", false);
 			myArgsEngine.add("-D", "--allele-depth", false);
+			myArgsEngine.add("-mc", "--marker-compression", false);
 			myArgsEngine.add("-S", "--random-seed", true);
+			myArgsEngine.add("-t", "--threads", true);
+			myArgsEngine.add("-pt", "--parallel-time", true);
+			myArgsEngine.add("-ag", "--aggregate", false);
+			myArgsEngine.add("-ff", "--fast-forward", false);
+			myArgsEngine.add("-fh", "--factorial", false);
+			myArgsEngine.add("-ms", "--matrix-storage", true);
+			myArgsEngine.add("-mb", "--memory-budget", true);
+			myArgsEngine.add("-sq", "--squarem", false);
+			myArgsEngine.add("-rs", "--restarts", true);
+			myArgsEngine.add("-hi", "--halving-iter", true);
+			myArgsEngine.add("-rk", "--restarts-kept", true);
+			myArgsEngine.add("-ws", "--warm-start", true);
+			myArgsEngine.add("-pr", "--prune", true);
+			myArgsEngine.add("-pc", "--prune-check", true);
+			myArgsEngine.add("-bm", "--beam", true);
+			myArgsEngine.add("-be", "--beam-error", true);
+			myArgsEngine.add("-db", "--debug", false);
 		}
 		myArgsEngine.parse(args);
 		
@@ -167,6 +279,12 @@ public class Haplotyper extends Executor {
 			for(int i=0; i<s.length; i++) parents[i] = s[i];
 		}
 		
+		if(myArgsEngine.getBoolean("-S")) {
+			seed = Long.parseLong(myArgsEngine.getString("-S"));
+		} else {
+			seed = Constants.nextSeed();
+		}
+		
 		if(scaff.length>1) {
 			if(myArgsEngine.getBoolean("-s")) {
 				String[] ss = myArgsEngine.getString("-s").split(":");
@@ -176,10 +294,11 @@ public class Haplotyper extends Executor {
 				for(int i=0; i<seperation.length; i++)
 					seperation[i] = Double.parseDouble(ss[i]);
 			} else {
+				final Random rand = new Random(seed);
 				seperation = new double[scaff.length-1];
 				for(int i=0; i<seperation.length; i++)
 					seperation[i] = Math.max(Math.round(
-							Constants.rand.nextDouble()*
+							rand.nextDouble()*
 							max_init_seperation),1);
 			}
 			boolean isRF = true;
@@ -223,58 +342,106 @@ public class Haplotyper extends Executor {
 			i++;
 		}
 		
+		if(myArgsEngine.getBoolean("-mc")) {
+			compress = true;
+		}
+		
 		if(i>1) throw new RuntimeException("Options -G/--genotype and "
 				+ "-D/--allele-depth are mutually exclusive.");
 		
-		if(myArgsEngine.getBoolean("-S")) {
-			Constants.seed = Long.parseLong(myArgsEngine.getString("-S"));
-			Constants.setRandomGenerator();
+		if(myArgsEngine.getBoolean("-t")) {
+			THREADS = Integer.parseInt(myArgsEngine.getString("-t"));
 		}
-	}
-
-	@Override
-	public void run() {
-		// TODO Auto-generated method stub
-        long currentNanoTime1 = System.nanoTime();
-        Runtime jr = Runtime.getRuntime();
-
-		myLogger.info("Random seed - "+Constants.seed);
-
-		DataEntry[] de = start_pos==null ? DataCollection.readDataEntry(in_zip, scaff, ploidy) :
-			DataCollection.readDataEntry(in_zip, scaff, start_pos, end_pos, ploidy);
-
-		double ll, ll0;
 		
-		myLogger.info("=> STAGE I. training emission model with no transitions allowed.");
-		final ModelTrainer model = new ModelTrainer(de, seperation, reverse, field, ploidy, parents);
+		if(myArgsEngine.getBoolean("-pt")) {
+			blocks = Integer.parseInt(myArgsEngine.getString("-pt"));
+		}
 		
-		if(!model.runnable()) return;
+		if(myArgsEngine.getBoolean("-ag")) {
+			aggregate = true;
+		}
 		
-		ll0 = Double.NEGATIVE_INFINITY;
-		for(int i=0; i<max_iter; i++) {
-			model.train();
-			ll = model.loglik();
-			if( ll==0 || ll0!=Double.NEGATIVE_INFINITY && (ll0-ll)/ll0 < minImprov)
-				break;
-			ll0 = ll;
-			myLogger.info("#iteration "+model.iteration()+": loglik "+ll);
+		if(myArgsEngine.getBoolean("-ff")) {
+			fast_forward = true;
 		}
-
-		myLogger.info("=> STAGE II. training emission model with transitions allowed.");
-		final BaumWelchTrainer model1 = BaumWelchTrainer.copyOf(model);
 		
-		if(!model1.runnable()) return;
+		if(myArgsEngine.getBoolean("-db")) {
+			debug = true;
+		}
 		
-		ll0 = Double.NEGATIVE_INFINITY;
-		for(int i=0; i<max_iter; i++) {
-			model1.train();
-			ll = model1.loglik();
-			if( ll==0 || ll0!=Double.NEGATIVE_INFINITY && (ll0-ll)/ll0 < minImprov)
-				break;
-			ll0 = ll;
-			myLogger.info("#iteration "+model1.iteration()+": loglik "+ll);
+		if(myArgsEngine.getBoolean("-fh")) {
+			factorial = true;
+		}
+		
+		if(myArgsEngine.getBoolean("-ms")) {
+			storage = Storage.valueOf(myArgsEngine.getString("-ms").toUpperCase());
+		}
+		
+		if(myArgsEngine.getBoolean("-mb")) {
+			memory_budget = (long) (Double.parseDouble(myArgsEngine.getString("-mb"))*1073741824L);
+		}
+		
+		if(myArgsEngine.getBoolean("-sq")) {
+			squarem = true;
+		}
+		
+		if(myArgsEngine.getBoolean("-rs")) {
+			restarts = Integer.parseInt(myArgsEngine.getString("-rs"));
+		}
+		
+		if(myArgsEngine.getBoolean("-hi")) {
+			halving_iter = Integer.parseInt(myArgsEngine.getString("-hi"));
 		}
 		
+		if(myArgsEngine.getBoolean("-rk")) {
+			restarts_kept = Integer.parseInt(myArgsEngine.getString("-rk"));
+		}
+		
+		if(myArgsEngine.getBoolean("-ws")) {
+			warm_zip = myArgsEngine.getString("-ws").split(":");
+		}
+		
+		if(myArgsEngine.getBoolean("-pr")) {
+			prune = Double.parseDouble(myArgsEngine.getString("-pr"));
+		}
+		
+		if(myArgsEngine.getBoolean("-pc")) {
+			prune_check = Integer.parseInt(myArgsEngine.getString("-pc"));
+		}
+		
+		if(myArgsEngine.getBoolean("-bm")) {
+			beam = Double.parseDouble(myArgsEngine.getString("-bm"));
+		}
+		
+		if(myArgsEngine.getBoolean("-be")) {
+			beam_err = Double.parseDouble(myArgsEngine.getString("-be"));
+		}
+		
+		if(restarts<1||halving_iter<1||restarts_kept<1||prune_check<1||blocks<1)
+			throw new RuntimeException("Options -rs/--restarts, -hi/--halving-iter, "
+					+ "-rk/--restarts-kept, -pc/--prune-check and -pt/--parallel-time "
+					+ "take positive integers.");
+		
+		if(aggregate && factorial)
+			throw new RuntimeException("Options -ag/--aggregate and "
+					+ "-fh/--factorial are mutually exclusive.");
+		
+		if(prune>0 && factorial)
+			throw new RuntimeException("Options -pr/--prune and "
+					+ "-fh/--factorial are mutually exclusive.");
+		
+		if(fast_forward && !aggregate)
+			throw new RuntimeException("Option -ff/--fast-forward needs option -ag/--aggregate.");
+		if(beam>0 && (aggregate || factorial))
+			throw new RuntimeException("Option -bm/--beam is mutually exclusive with "
+					+ "options -ag/--aggregate and -fh/--factorial.");
+		if(blocks>1 && (fast_forward || factorial || beam>0))
+			throw new RuntimeException("Option -pt/--parallel-time is mutually exclusive with "
+					+ "options -ff/--fast-forward, -fh/--factorial and -bm/--beam.");
+	}
+
+	private String scaffStr() {
+		// TODO Auto-generated method stub
 		String scaff_str = scaff[0]+
 				(start_pos==null||start_pos[0]==Integer.MIN_VALUE?"":"_"+start_pos[0])+
 				(end_pos==null||end_pos[0]==Integer.MAX_VALUE?"":"_"+end_pos[0]);
@@ -288,8 +455,151 @@ public class Haplotyper extends Executor {
 				break;
 			}
 		}
+		return scaff_str;
+	}
+
+	private void train(final ModelTrainer model) {
+		// TODO Auto-generated method stub
+		// random initialisations are trained side by side on the same
+		// observations. every halving_iter EM iterations of stage II the
+		// half with the lowest log-likelihoods is culled until only 
+		// restarts_kept are left
+		final int R = restarts;
+		double ll, ll0;
+		
+		final ModelTrainer[] model0 = new ModelTrainer[R];
+		final SplittableRandom srand = new SplittableRandom(seed);
+		model0[0] = model;
+		for(int r=1; r<R; r++) model0[r] = ModelTrainer.copyOf(model, srand.nextLong());
+		
+		final ModelReader[] warm = warm_zip==null ? null : new ModelReader[warm_zip.length];
+		for(int i=0; warm!=null&&i<warm.length; i++) {
+			warm[i] = new ModelReader(warm_zip[i]);
+			if(warm[i].isNull()) 
+				throw new RuntimeException("Warm start model "+warm_zip[i]+" not readable!!!");
+		}
+		final String warm_str = warm_zip==null ? null : StringUtils.join(warm_zip, ",");
+		final boolean[] warmed = new boolean[R];
+		for(int r=0; r<R; r++) {
+			if(warm!=null) {
+				final int n = model0[r].warmStart(warm);
+				myLogger.info(restart(r)+"warm start from "+warm_str+": "+n+" markers matched.");
+				warmed[r] = n>0;
+				if(warmed[r]) continue;
+			}
+			ll0 = Double.NEGATIVE_INFINITY;
+			for(int i=0; i<max_iter; i++) {
+				model0[r].train();
+				ll = model0[r].loglik();
+				if( ll==0 || ll0!=Double.NEGATIVE_INFINITY && (ll0-ll)/ll0 < minImprov)
+					break;
+				ll0 = ll;
+				myLogger.info(restart(r)+"#iteration "+model0[r].iteration()+": loglik "+ll);
+			}
+		}
+
+		myLogger.info("=> STAGE II. training emission model with transitions allowed.");
+		final BaumWelchTrainer[] model1 = new BaumWelchTrainer[R];
+		for(int r=0; r<R; r++) {
+			model1[r] = factorial ? FactorialTrainer.copyOf(model0[r]) : 
+				BaumWelchTrainer.copyOf(model0[r], memory_budget/R, storage);
+			model0[r] = null;
+			if(warmed[r]) 
+				myLogger.info(restart(r)+"warm start from "+warm_str+": "+
+						model1[r].warmStartJumps(warm)+" intervals matched.");
+			model1[r].modifyAggregate(aggregate);
+			model1[r].modifyFastForward(fast_forward);
+			model1[r].modifyDebug(debug);
+			model1[r].modifySquarem(squarem);
+			model1[r].modifyPrune(prune, prune_check);
+			model1[r].modifyBeam(beam, beam_err);
+			model1[r].modifyBlocks(blocks);
+		}
+		if(warm!=null) for(ModelReader w : warm) w.close();
+		
+		if(!model1[0].runnable()) {
+			model1[0].shutdown();
+			return;
+		}
+		
+		final double[] lls = new double[R], lls0 = new double[R];
+		final int[] iter0 = new int[R];
+		final boolean[] converged = new boolean[R];
+		Arrays.fill(lls, Double.NEGATIVE_INFINITY);
+		Arrays.fill(lls0, Double.NEGATIVE_INFINITY);
+		for(int r=0; r<R; r++) iter0[r] = model1[r].iteration();
+		
+		List<Integer> alive = new ArrayList<>();
+		for(int r=0; r<R; r++) alive.add(r);
+		
+		while(true) {
+			for(int r : alive) {
+				final int iter1 = model1[r].iteration();
+				while(!converged[r] && model1[r].iteration()-iter1<halving_iter) {
+					if(model1[r].iteration()-iter0[r]>=max_iter) {
+						converged[r] = true;
+						break;
+					}
+					model1[r].train();
+					lls[r] = model1[r].loglik();
+					if( lls[r]==0 || lls0[r]!=Double.NEGATIVE_INFINITY && (lls0[r]-lls[r])/lls0[r] < minImprov) {
+						converged[r] = true;
+						break;
+					}
+					lls0[r] = lls[r];
+					myLogger.info(restart(r)+"#iteration "+model1[r].iteration()+": loglik "+lls[r]);
+				}
+			}
+			
+			boolean done = true;
+			for(int r : alive) done &= converged[r];
+			if(done) break;
+			
+			if(alive.size()>restarts_kept) {
+				Collections.sort(alive, (a, b) -> Double.compare(lls[b], lls[a]));
+				final int n = Math.max(restarts_kept, (alive.size()+1)/2);
+				for(int r : alive.subList(n, alive.size())) {
+					myLogger.info(restart(r)+"culled: loglik "+lls[r]);
+					model1[r] = null;
+				}
+				alive = new ArrayList<>(alive.subList(0, n));
+			}
+		}
+		
+		Collections.sort(alive, (a, b) -> Double.compare(lls[b], lls[a]));
+		if(alive.size()>restarts_kept) alive = alive.subList(0, restarts_kept);
+		final String scaff_str = this.scaffStr();
+		for(int r : alive) {
+			if(R>1) myLogger.info(restart(r)+"kept: loglik "+lls[r]);
+			model1[r].write(out_prefix, expr_id, scaff_str);
+		}
+		model1[alive.get(0)].shutdown();
+	}
+	
+	private String restart(int r) {
+		// TODO Auto-generated method stub
+		return restarts>1 ? "#restart "+r+" " : "";
+	}
+	
+	@Override
+	public void run() {
+		// TODO Auto-generated method stub
+        long currentNanoTime1 = System.nanoTime();
+        Runtime jr = Runtime.getRuntime();
+
+		myLogger.info("Random seed - "+seed);
+
+		DataEntry[] de = start_pos==null ? DataCollection.readDataEntry(in_zip, scaff, ploidy) :
+			DataCollection.readDataEntry(in_zip, scaff, start_pos, end_pos, ploidy);
+
+		myLogger.info("=> STAGE I. training emission model with no transitions allowed.");
+		final ModelTrainer model = new ModelTrainer(de, seperation, reverse, field, ploidy, parents, seed, compress);
+		
+		if(!model.runnable()) return;
+		
+		model.setThreads(THREADS);
 		
-		model1.write(out_prefix, expr_id, scaff_str);
+		this.train(model);
 		
         long currentNanoTime2 = System.nanoTime();
 
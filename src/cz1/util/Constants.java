@@ -1,6 +1,7 @@
 package cz1.util;
 
 import java.util.Random;
+import java.util.SplittableRandom;
 
 import org.apache.commons.math3.random.RandomGenerator;
 import org.apache.commons.math3.random.Well19937c;
@@ -10,6 +11,7 @@ public class Constants {
 	public static long seed = System.nanoTime();
 	public static Random rand = new Random(seed);
 	public static RandomGenerator rg = new Well19937c(seed);
+	private static SplittableRandom srand = new SplittableRandom(seed); // seeds of tasks
 	
 	public final static double MIN_EXP_DOUBLE = Math.log(Double.MIN_VALUE);
 	public final static double MAX_EXP_DOUBLE = Math.log(Double.MAX_VALUE);
@@ -18,6 +20,7 @@ public class Constants {
 	public final static double logThreshMax = Math.log(threshMax);
 	public final static double logThreshMin = Math.log(threshMin);
 	public static enum Field { PL, AD, GT, GL }
+	public static enum Storage { DOUBLE, FLOAT, DIRECT }
 	public final static String collapsed_str = "____";
 	public final static int MAX_FILE_ID_LENGTH = 128;
 
@@ -34,6 +37,13 @@ public class Constants {
 		// TODO Auto-generated method stub
 		rand = new Random(seed);
 		rg = new Well19937c(seed);
+		srand = new SplittableRandom(seed);
+	}
+	
+	public static synchronized long nextSeed() {
+		// TODO Auto-generated method stub
+		// seed for a task with random streams of its own
+		return srand.nextLong();
 	}
 
 	public static void throwRuntimeException(String message) {